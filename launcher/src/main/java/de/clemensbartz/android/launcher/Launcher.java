@@ -22,11 +22,9 @@ import android.appwidget.AppWidgetHost;
 import android.appwidget.AppWidgetHostView;
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProviderInfo;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
@@ -37,8 +35,12 @@ import android.graphics.drawable.Drawable;
 import android.graphics.drawable.RippleDrawable;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.os.Parcelable;
+import android.os.Process;
 import android.os.StrictMode;
+import android.util.Log;
 import android.view.ContextMenu;
 import android.view.MenuItem;
 import android.view.View;
@@ -48,17 +50,40 @@ import android.widget.GridView;
 import android.widget.ImageView;
 import android.widget.ViewSwitcher;
 
+import java.text.Collator;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import de.clemensbartz.android.launcher.adapters.DrawerListAdapter;
+import de.clemensbartz.android.launcher.caches.CatalogFile;
+import de.clemensbartz.android.launcher.caches.DockSnapshot;
 import de.clemensbartz.android.launcher.caches.IconCache;
+import de.clemensbartz.android.launcher.db.UsageRecorder;
+import de.clemensbartz.android.launcher.db.ComponentRegistry;
+import de.clemensbartz.android.launcher.models.AppCatalog;
 import de.clemensbartz.android.launcher.models.ApplicationModel;
 import de.clemensbartz.android.launcher.models.DockUpdateModel;
 import de.clemensbartz.android.launcher.models.HomeModel;
+import de.clemensbartz.android.launcher.models.PackageChangeTracker;
 import de.clemensbartz.android.launcher.util.BitmapUtil;
 import de.clemensbartz.android.launcher.util.IntentUtil;
+import de.clemensbartz.android.launcher.util.PackageChangesUtil;
 
 /**
  * Launcher class.
@@ -68,6 +93,9 @@ import de.clemensbartz.android.launcher.util.IntentUtil;
  */
 public final class Launcher extends Activity {
 
+    /** The tag for logging. */
+    private static final String TAG = "Launcher";
+
     /** Id to identify the home layout. */
     private static final int HOME_ID = 0;
     /** Id to identify the launcher layout. */
@@ -92,6 +120,36 @@ public final class Launcher extends Activity {
     /** Request code for toggle sticky app. */
     private static final int ITEM_TOGGLE_STICKY = 7;
 
+    /** The number of threads resolving labels and icons. */
+    private static final int RESOLVE_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    /** The number of applications that are resolved ahead of the list. */
+    private static final int RESOLVE_WINDOW = 2 * RESOLVE_THREADS;
+    /** The time in seconds idle resolving threads are kept. */
+    private static final int RESOLVE_KEEP_ALIVE = 30;
+    /** The pool resolving labels and icons. */
+    private static final ThreadPoolExecutor RESOLVE_EXECUTOR = new ThreadPoolExecutor(
+            RESOLVE_THREADS,
+            RESOLVE_THREADS,
+            RESOLVE_KEEP_ALIVE,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "ApplicationResolver");
+                }
+            });
+
+    static {
+        RESOLVE_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
     /** The view switcher of the launcher. */
     private ViewSwitcher vsLauncher;
     /** The view for holding the widget. */
@@ -101,6 +159,8 @@ public final class Launcher extends Activity {
 
     /** The icon cache. */
     private IconCache iconCache;
+    /** The snapshot of the dock. */
+    private DockSnapshot dockSnapshot;
     /** The model for home. */
     private HomeModel model;
     /** The manager for widgets. */
@@ -111,18 +171,58 @@ public final class Launcher extends Activity {
     private DrawerListAdapter lvApplicationsAdapter;
     /** The asynchronous task for updating the list view. */
     private UpdateAsyncTask updateAsyncTask;
-    /** The list of installed applications. */
-    private final List<ApplicationModel> applicationModels = new ArrayList<>(0);
-    /** The broadcast receiver for package changes. */
-    private final BroadcastReceiver packageChangedBroadcastReceiver = new BroadcastReceiver() {
+    /** The file holding the list of installed applications. */
+    private CatalogFile catalogFile;
+    /** The registry of the components. */
+    private ComponentRegistry registry;
+    /** The collator for the sort keys of the labels. */
+    private final Collator collator = Collator.getInstance();
+    /**
+     * The catalog of installed applications. Catalogs are never changed, a new catalog
+     * replaces the reference on the main thread.
+     */
+    private AppCatalog appCatalog = AppCatalog.EMPTY;
+    /** The tracker for package changes. */
+    private PackageChangeTracker packageChangeTracker;
+    /** The listener for package changes. */
+    private final PackageChangeTracker.Listener packageChangeListener = new PackageChangeTracker.Listener() {
         @Override
-        public void onReceive(final Context context, final Intent intent) {
-            iconCache.invalidate();
-            updateApplications();
+        public void onPackagesChanged(final Collection<String> packageNames) {
+            for (String packageName : packageNames) {
+                iconCache.invalidate(packageName);
+                model.invalidate(packageName);
+            }
+
+            // One update for the whole burst of changes
+            updatePackages(packageNames);
+            updateDock();
         }
     };
     /** The temporary application model for context menus. */
     private ApplicationModel contextMenuApplicationModel;
+    /** Starts the maintenance of the model, once the launcher is idle. */
+    private final MessageQueue.IdleHandler maintenanceIdleHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            if (model != null && model.isMaintenanceDue()) {
+                new MaintenanceAsyncTask().execute();
+            }
+
+            return false;
+        }
+    };
+
+    /** Loads the drawer in the background, once the home screen is idle. */
+    private final MessageQueue.IdleHandler drawerIdleHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            if (updateAsyncTask == null) {
+                updateApplications();
+            }
+
+            return false;
+        }
+    };
 
     /**
      * Adjust StrictMode based on environment parameters.
@@ -186,7 +286,7 @@ public final class Launcher extends Activity {
                     final int i,
                     final long l) {
 
-                openApp(applicationModels.get(i));
+                openApp(lvApplicationsAdapter.getItem(i));
             }
         });
         registerForContextMenu(lvApplications);
@@ -207,9 +307,34 @@ public final class Launcher extends Activity {
         }
 
         // Initialize applications adapter and set it.
-        lvApplicationsAdapter = new DrawerListAdapter(this, applicationModels);
+        lvApplicationsAdapter = new DrawerListAdapter(this, IconCache.getInstance(this), RESOLVE_EXECUTOR);
 
         lvApplications.setAdapter(lvApplicationsAdapter);
+
+        // Show the dock of the last run until the model has been loaded
+        catalogFile = CatalogFile.getInstance(this);
+        registry = ComponentRegistry.getInstance(this);
+        dockSnapshot = DockSnapshot.getInstance(this);
+        bindDockSnapshot();
+    }
+
+    /**
+     * Bind the dock from the snapshot. This reads from disk on the main thread, which is
+     * acceptable for a small memory-mapped file that is needed for the first frame.
+     */
+    private void bindDockSnapshot() {
+        final List<ApplicationModel> snapshot;
+
+        final StrictMode.ThreadPolicy threadPolicy = StrictMode.allowThreadDiskReads();
+        try {
+            snapshot = dockSnapshot.read(getResources());
+        } finally {
+            StrictMode.setThreadPolicy(threadPolicy);
+        }
+
+        for (int i = 0, snapshotSize = snapshot.size(); i < snapshotSize && i < dockImageViews.size(); i++) {
+            updateDock(dockImageViews.get(i), snapshot.get(i));
+        }
     }
 
     @Override
@@ -217,15 +342,54 @@ public final class Launcher extends Activity {
         super.onStart();
 
         iconCache = IconCache.getInstance(this);
-        iconCache.invalidate();
-
 
         model = HomeModel.getInstance(this);
 
+        // Keep the drawer, the dock and the icons up to date. Changes while the launcher
+        // was stopped are delivered right away.
+        packageChangeTracker = PackageChangeTracker.getInstance(this);
+        packageChangeTracker.addListener(packageChangeListener);
+
         // Go
         new LoadModelAsyncTask().execute();
     }
 
+    @Override
+    protected void onStop() {
+        // Do not lose launches, if the process gets killed in the background
+        UsageRecorder.getInstance(this).persist();
+
+        packageChangeTracker.removeListener(packageChangeListener);
+
+        super.onStop();
+    }
+
+    @Override
+    public void onTrimMemory(final int level) {
+        super.onTrimMemory(level);
+
+        if (iconCache == null) {
+            return;
+        }
+
+        final int iconBytes = iconCache.trimMemory(level);
+
+        // The drawer is not shown, so its catalog is read from the catalog file again on resume
+        int catalogBytes = 0;
+        if (level >= TRIM_MEMORY_MODERATE && appCatalog != AppCatalog.EMPTY) {
+            catalogBytes = appCatalog.estimateByteCount();
+
+            if (updateAsyncTask != null) {
+                updateAsyncTask.cancel(true);
+                updateAsyncTask = null;
+            }
+            publishApplications(AppCatalog.EMPTY);
+        }
+
+        Log.i(TAG, "Trimmed memory at level " + level + ": " + iconBytes + " bytes of icons, "
+                + catalogBytes + " bytes of the catalog");
+    }
+
     @Override
     public void onBackPressed() {
         switchTo(HOME_ID);
@@ -238,6 +402,11 @@ public final class Launcher extends Activity {
         switchTo(HOME_ID);
 
         updateDock();
+
+        Looper.myQueue().removeIdleHandler(maintenanceIdleHandler);
+        Looper.myQueue().addIdleHandler(maintenanceIdleHandler);
+        Looper.myQueue().removeIdleHandler(drawerIdleHandler);
+        Looper.myQueue().addIdleHandler(drawerIdleHandler);
     }
 
     @Override
@@ -323,13 +492,6 @@ public final class Launcher extends Activity {
         appWidgetHost.stopListening();
         //model.close();
 
-        // Prevent memory leaks for receiver
-        try {
-            unregisterReceiver(packageChangedBroadcastReceiver);
-        } catch (final IllegalArgumentException e) {
-            // do nothing here
-        }
-
         super.onDestroy();
     }
 
@@ -356,25 +518,16 @@ public final class Launcher extends Activity {
         switch (vsLauncher.getDisplayedChild()) {
             case HOME_ID:
                 if (id == DRAWER_ID) {
-                    final IntentFilter filter = new IntentFilter();
-                    filter.addAction(Intent.ACTION_PACKAGE_ADDED);
-                    filter.addAction(Intent.ACTION_INSTALL_PACKAGE);
-                    filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
-                    filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
-                    filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
-                    filter.addDataScheme("package");
-
-                    registerReceiver(packageChangedBroadcastReceiver, filter);
-
-                    updateApplications();
+                    // The drawer is usually loaded already while the home screen was idle
+                    if (updateAsyncTask == null) {
+                        updateApplications();
+                    }
 
                     vsLauncher.showNext();
                 }
                 break;
             case DRAWER_ID:
                 if (id == HOME_ID) {
-                    unregisterReceiver(packageChangedBroadcastReceiver);
-
                     vsLauncher.showPrevious();
                 }
                 break;
@@ -447,6 +600,101 @@ public final class Launcher extends Activity {
         updateAsyncTask.execute();
     }
 
+    /**
+     * Update the applications of some packages. If the list has not been loaded completely,
+     * all applications are updated.
+     * @param packageNames the package names
+     */
+    private void updatePackages(final Collection<String> packageNames) {
+        if (updateAsyncTask == null
+                || updateAsyncTask.isCancelled()
+                || updateAsyncTask.getStatus() != AsyncTask.Status.FINISHED) {
+            updateApplications();
+        } else {
+            new UpdatePackagesAsyncTask(packageNames).execute();
+        }
+    }
+
+    /**
+     * Create an application model with a label. The icon is loaded by the adapter, once the
+     * application is shown.
+     * <p/>
+     * This method has to be called from an async task.
+     * @param pm the package manager
+     * @param resolveInfo the resolved activity
+     * @return the model or <code>null</code>, if the activity is incomplete
+     */
+    private ApplicationModel newApplicationModel(final PackageManager pm, final ResolveInfo resolveInfo) {
+        final ApplicationModel applicationModel = new ApplicationModel();
+        applicationModel.packageName = resolveInfo.activityInfo.packageName;
+        applicationModel.className = resolveInfo.activityInfo.name;
+
+        if (applicationModel.packageName == null || applicationModel.className == null) {
+            return null;
+        }
+
+        applicationModel.componentId = registry.getId(applicationModel.packageName, applicationModel.className);
+        applicationModel.label = resolveInfo.loadLabel(pm);
+
+        // Collators are not thread-safe
+        synchronized (collator) {
+            applicationModel.sortKey = collator.getCollationKey(applicationModel.label.toString()).toByteArray();
+        }
+
+        return applicationModel;
+    }
+
+    /**
+     * Show a new catalog of the installed applications. This must be called from the main thread.
+     * @param catalog the new catalog
+     */
+    private void publishApplications(final AppCatalog catalog) {
+        appCatalog = catalog;
+        lvApplicationsAdapter.setCatalog(catalog);
+    }
+
+    /**
+     * Resolve the applications of one package.
+     * <p/>
+     * This method has to be called from an async task.
+     * @param pm the package manager
+     * @param packageName the package name
+     * @return the applications of the package, empty if the package has been removed
+     */
+    private List<ApplicationModel> resolvePackage(final PackageManager pm, final String packageName) {
+        final Intent intent = new Intent();
+        intent.setAction(Intent.ACTION_MAIN);
+        intent.addCategory(Intent.CATEGORY_LAUNCHER);
+        intent.setPackage(packageName);
+
+        final List<ResolveInfo> resolveInfoList = pm.queryIntentActivities(intent, 0);
+        final List<ApplicationModel> packageApplicationModels = new ArrayList<>(resolveInfoList.size());
+
+        if (resolveInfoList.isEmpty()) {
+            // The package has been removed, so its icons are not needed anymore
+            iconCache.removePackage(packageName);
+        }
+
+        for (int i = 0, resolveInfoListSize = resolveInfoList.size(); i < resolveInfoListSize; i++) {
+            final ApplicationModel applicationModel = newApplicationModel(pm, resolveInfoList.get(i));
+
+            if (applicationModel != null) {
+                packageApplicationModels.add(applicationModel);
+            }
+        }
+
+        return packageApplicationModels;
+    }
+
+    /**
+     * Write the current list of applications to the catalog file in the background.
+     * @param bootCount the boot count the list has been updated in
+     * @param sequenceNumber the sequence number of package changes the list is up to date with
+     */
+    private void writeCatalog(final int bootCount, final int sequenceNumber) {
+        catalogFile.write(Locale.getDefault().toLanguageTag(), bootCount, sequenceNumber, appCatalog);
+    }
+
     /**
      * Update dock.
      */
@@ -469,14 +717,14 @@ public final class Launcher extends Activity {
      * @param key the key
      * @return the image
      */
-    private BitmapDrawable loadDrawable(final String key) {
+    private BitmapDrawable loadDrawable(final int key) {
         BitmapDrawable bitmapDrawable = iconCache.getIcon(key);
 
         if (bitmapDrawable == null) {
-            if (IconCache.IC_LAUNCHER_KEY.equals(key)) {
+            if (key == IconCache.IC_LAUNCHER_ID) {
                 final Drawable icLauncher = getDrawable(R.drawable.ic_launcher);
                 bitmapDrawable = BitmapUtil.resizeDrawable(getResources(), icLauncher);
-                iconCache.create(IconCache.IC_LAUNCHER_KEY, bitmapDrawable);
+                iconCache.create(IconCache.IC_LAUNCHER_ID, bitmapDrawable);
             }
         }
 
@@ -492,7 +740,7 @@ public final class Launcher extends Activity {
         if (applicationModel == null) {
             if (imageView.getTag() != null) {
                 imageView.setTag(null);
-                imageView.setImageDrawable(loadDrawable(IconCache.IC_LAUNCHER_KEY));
+                imageView.setImageDrawable(loadDrawable(IconCache.IC_LAUNCHER_ID));
                 imageView.setOnClickListener(null);
                 imageView.setContentDescription(null);
             }
@@ -502,10 +750,14 @@ public final class Launcher extends Activity {
             if (tag instanceof ApplicationModel) {
                 final ApplicationModel tagModel = (ApplicationModel) tag;
 
-                if (tagModel.packageName.equals(applicationModel.packageName)
+                // Icons of the snapshot and icons of updated packages are other objects
+                if (tagModel.icon == applicationModel.icon
+                        && tagModel.packageName.equals(applicationModel.packageName)
                         && tagModel.className.equals(applicationModel.className)
-                        && tagModel.label.equals(applicationModel.label)
+                        && tagModel.label.toString().equals(applicationModel.label.toString())
                 ) {
+                    // Keep the image, but use the live model, e.g. for the flags in the context menu
+                    imageView.setTag(applicationModel);
                     return;
                 }
             }
@@ -532,7 +784,7 @@ public final class Launcher extends Activity {
         @Override
         public void onCreateContextMenu(final ContextMenu contextMenu, final View view, final ContextMenu.ContextMenuInfo contextMenuInfo) {
             final AdapterView.AdapterContextMenuInfo info = (AdapterView.AdapterContextMenuInfo) contextMenuInfo;
-            final ApplicationModel applicationModel = applicationModels.get(info.position);
+            final ApplicationModel applicationModel = lvApplicationsAdapter.getItem(info.position);
             contextMenuApplicationModel = applicationModel;
 
             contextMenu.setHeaderTitle(applicationModel.label);
@@ -541,13 +793,14 @@ public final class Launcher extends Activity {
 
             contextMenu.add(0, ITEM_RESET, 0, R.string.resetcounter);
 
+            // The catalog has no flags, they are read from the model, which is toggled
             final MenuItem toggleDisabledItem = contextMenu.add(0, ITEM_TOGGLE_DISABLED, 0, R.string.showInDock);
             toggleDisabledItem.setCheckable(true);
-            toggleDisabledItem.setChecked(!applicationModel.disabled);
+            toggleDisabledItem.setChecked(!model.isDisabled(applicationModel.componentId));
 
             final MenuItem toggleStickyItem = contextMenu.add(0, ITEM_TOGGLE_STICKY, 0, R.string.showInDockSticky);
             toggleStickyItem.setCheckable(true);
-            toggleStickyItem.setChecked(applicationModel.sticky);
+            toggleStickyItem.setChecked(model.isSticky(applicationModel.componentId));
 
             // Check for system apps
             try {
@@ -679,15 +932,16 @@ public final class Launcher extends Activity {
         @Override
         protected Integer doInBackground(final ApplicationModel... applicationModels) {
             for (ApplicationModel applicationModel : applicationModels) {
-                model.addUsage(applicationModel.packageName, applicationModel.className, getResources(), iconCache);
+                model.addUsage(applicationModel.packageName, applicationModel.className);
             }
 
-            if (applicationModels.length == 0) {
-                model.updateApplications(getResources(), iconCache);
-            }
+            model.updateApplications(getResources(), iconCache);
 
             final List<ApplicationModel> mostUsedApplications = model.getMostUsedApplications();
 
+            // Remember the dock for the next cold start
+            dockSnapshot.write(getResources(), mostUsedApplications);
+
             for (int i = 0; i < dockImageViews.size(); i++) {
                 if (i >= mostUsedApplications.size()) {
                     publishProgress(new DockUpdateModel(dockImageViews.get(i), null));
@@ -707,6 +961,23 @@ public final class Launcher extends Activity {
         }
     }
 
+    /**
+     * Async task for the maintenance of the model.
+     */
+    private class MaintenanceAsyncTask extends AsyncTask<Integer, Integer, Integer> {
+        @Override
+        protected Integer doInBackground(final Integer... params) {
+            model.maintain(iconCache);
+
+            return 0;
+        }
+
+        @Override
+        protected void onPostExecute(final Integer result) {
+            new LoadMostUsedAppsAsyncTask().execute();
+        }
+    }
+
     /**
      * Async task for loading the model on start.
      */
@@ -730,80 +1001,248 @@ public final class Launcher extends Activity {
     /**
      * Async task to update applications of the list view.
      */
-    private class UpdateAsyncTask extends AsyncTask<Integer, Integer, Integer> {
-
-        /** Number of apps after which a refresh should be triggered. */
-        private static final int REFRESH_NUMBER = 5;
+    private class UpdateAsyncTask extends AsyncTask<Integer, AppCatalog, AppCatalog> {
 
         @Override
-        protected Integer doInBackground(final Integer... integers) {
+        protected AppCatalog doInBackground(final Integer... integers) {
             final Intent intent = new Intent();
             intent.setAction(Intent.ACTION_MAIN);
             intent.addCategory(Intent.CATEGORY_LAUNCHER);
 
             final PackageManager pm = getPackageManager();
+
+            // Read the sequence number first, so a change while scanning is not lost
+            final String locale = Locale.getDefault().toLanguageTag();
+            final int bootCount = PackageChangesUtil.getBootCount(Launcher.this);
+            final int sequenceNumber = PackageChangesUtil.getSequenceNumber(pm);
+
+            final AppCatalog updatedCatalog = updateFromCatalog(pm, locale, bootCount, sequenceNumber);
+            if (updatedCatalog != null) {
+                return updatedCatalog;
+            }
+
             final List<ResolveInfo> resolveInfoList =
                     pm.queryIntentActivities(intent, 0);
-            Collections.sort(
-                    resolveInfoList,
-                    new ResolveInfo.DisplayNameComparator(pm)
-            );
-
-            int i = 0;
-
-            for (int i1 = 0, resolveInfoListSize = resolveInfoList.size(); i1 < resolveInfoListSize; i1++) {
-                final ResolveInfo resolveInfo = resolveInfoList.get(i1);
-                final boolean disabled = model.isDisabled(resolveInfo.activityInfo.packageName, resolveInfo.activityInfo.name);
-                final boolean sticky = model.isSticky(resolveInfo.activityInfo.packageName, resolveInfo.activityInfo.name);
-                final ApplicationModel applicationModel = new ApplicationModel();
-                applicationModel.packageName = resolveInfo.activityInfo.packageName;
-                applicationModel.className = resolveInfo.activityInfo.name;
-                applicationModel.disabled = disabled;
-                applicationModel.sticky = sticky;
-
-                if (applicationModel.packageName == null || applicationModel.className == null) {
-                    continue;
+
+            int next = 0;
+            final int resolveInfoListSize = resolveInfoList.size();
+            final Deque<Future<ApplicationModel>> futures = new ArrayDeque<>(RESOLVE_WINDOW);
+            final List<ApplicationModel> loadedApplicationModels = new ArrayList<>(resolveInfoListSize);
+
+            try {
+                while (next < resolveInfoListSize || !futures.isEmpty()) {
+                    // Keep the pool busy, but do not resolve too far ahead of the list
+                    while (next < resolveInfoListSize && futures.size() < RESOLVE_WINDOW) {
+                        futures.add(RESOLVE_EXECUTOR.submit(newResolveCallable(pm, resolveInfoList.get(next))));
+                        next = next + 1;
+                    }
+
+                    final ApplicationModel applicationModel = getResult(futures.poll());
+
+                    if (isCancelled()) {
+                        break;
+                    }
+
+                    if (applicationModel != null) {
+                        loadedApplicationModels.add(applicationModel);
+                    }
                 }
+            } catch (final InterruptedException e) {
+                // A newer load has superseded this one
+            } finally {
+                for (Future<ApplicationModel> future : futures) {
+                    future.cancel(false);
+                }
+            }
+
+            if (isCancelled()) {
+                return AppCatalog.EMPTY;
+            }
+
+            // Every label has been loaded exactly once, so sorting only compares the keys
+            Collections.sort(loadedApplicationModels, AppCatalog.SORT_KEY_COMPARATOR);
+
+            // The models have only been needed for sorting, the catalog keeps the columns
+            final AppCatalog catalog = AppCatalog.of(loadedApplicationModels);
+            catalogFile.write(locale, bootCount, sequenceNumber, catalog);
 
-                applicationModel.label = resolveInfo.loadLabel(pm);
+            // The list is complete, so this is a good time to remove uninstalled apps
+            model.reconcile(resolveInfoList, iconCache);
 
-                final String key = BitmapUtil.createKey(applicationModel.packageName, applicationModel.className);
-                applicationModel.icon = iconCache.getIcon(key);
-                if (applicationModel.icon == null) {
-                    final BitmapDrawable bitmapDrawable = BitmapUtil.resizeDrawable(getResources(), resolveInfo.loadIcon(pm));
-                    iconCache.create(key, bitmapDrawable);
-                    applicationModel.icon = bitmapDrawable;
+            return catalog;
+        }
+
+        /**
+         * Show the applications from the catalog file and scan only the packages that have
+         * changed since it has been written.
+         * @param pm the package manager
+         * @param locale the current locale
+         * @param bootCount the current boot count
+         * @param sequenceNumber the current sequence number of package changes
+         * @return the complete catalog or <code>null</code>, if all packages have to be scanned
+         */
+        private AppCatalog updateFromCatalog(final PackageManager pm, final String locale, final int bootCount, final int sequenceNumber) {
+            final AppCatalog file = catalogFile.read(locale, bootCount);
+
+            if (file == null) {
+                return null;
+            }
+
+            // The component ids are not part of the file
+            final AppCatalog.Builder builder = new AppCatalog.Builder(file.size());
+            for (int i = 0, fileSize = file.size(); i < fileSize; i++) {
+                final String packageName = file.getPackageName(i);
+                final String className = file.getClassName(i);
+                final int componentId = registry.getId(packageName, className);
+
+                builder.add(
+                        componentId,
+                        packageName,
+                        className,
+                        file.getLabel(i),
+                        file.getSortKey(i));
+            }
+            AppCatalog catalog = builder.build();
+
+            // Show the catalog right away, even if it has to be scanned again
+            publishProgress(catalog);
+
+            final List<String> changedPackages = PackageChangesUtil.getChangedPackages(pm, catalogFile.getSequenceNumber());
+
+            if (changedPackages == null) {
+                return null;
+            }
+
+            for (int i = 0, changedPackagesSize = changedPackages.size(); i < changedPackagesSize; i++) {
+                if (isCancelled()) {
+                    return catalog;
                 }
 
-                applicationModels.add(applicationModel);
-                i = i + 1;
+                catalog = catalog.replacePackage(changedPackages.get(i), resolvePackage(pm, changedPackages.get(i)));
+            }
+
+            if (sequenceNumber != catalogFile.getSequenceNumber()) {
+                catalogFile.write(locale, bootCount, sequenceNumber, catalog);
+            }
+
+            return catalog;
+        }
 
-                if (i % REFRESH_NUMBER == 0) {
+        /**
+         * Create a callable that resolves an application on the pool. Callables of a
+         * cancelled task return without resolving.
+         * @param pm the package manager
+         * @param resolveInfo the resolved activity
+         * @return the callable
+         */
+        private Callable<ApplicationModel> newResolveCallable(final PackageManager pm, final ResolveInfo resolveInfo) {
+            return new Callable<ApplicationModel>() {
+                @Override
+                public ApplicationModel call() {
                     if (isCancelled()) {
-                        break;
-                    } else {
-                        publishProgress();
+                        return null;
                     }
+
+                    return newApplicationModel(pm, resolveInfo);
                 }
+            };
+        }
+
+        /**
+         * Wait for the result of a callable.
+         * @param future the future of the callable
+         * @return the application model or <code>null</code>, if it could not be resolved
+         * @throws InterruptedException if the task has been cancelled while waiting
+         */
+        private ApplicationModel getResult(final Future<ApplicationModel> future) throws InterruptedException {
+            try {
+                return future.get();
+            } catch (final ExecutionException e) {
+                // Skip applications that fail to load
+                return null;
             }
+        }
 
-            return 0;
+        @Override
+        protected void onPostExecute(final AppCatalog result) {
+            publishApplications(result);
         }
 
         @Override
-        protected void onPostExecute(final Integer result) {
-            lvApplicationsAdapter.notifyDataSetChanged();
+        protected void onProgressUpdate(final AppCatalog... values) {
+            for (AppCatalog catalog : values) {
+                publishApplications(catalog);
+            }
+        }
+    }
+
+    /**
+     * Async task to update the applications of some packages in the list view. The entries of
+     * the packages are replaced and inserted at their sorted position.
+     * <p/>
+     * All packages that have changed since the catalog file has been written are updated,
+     * too. Changes that have not been delivered yet, e. g. while they are being coalesced,
+     * are then part of the update, so the catalog file can be stamped with the current
+     * sequence number.
+     */
+    private class UpdatePackagesAsyncTask extends AsyncTask<Integer, Integer, Map<String, List<ApplicationModel>>> {
+
+        /** The package names. */
+        private final Collection<String> packageNames;
+        /** The boot count the update is done in. */
+        private int bootCount;
+        /** The sequence number of package changes the update is up to date with. */
+        private int sequenceNumber;
+
+        /**
+         * Create a new task.
+         * @param packageNames the package names
+         */
+        UpdatePackagesAsyncTask(final Collection<String> packageNames) {
+            this.packageNames = packageNames;
         }
 
         @Override
-        protected void onPreExecute() {
-            applicationModels.clear();
-            lvApplicationsAdapter.notifyDataSetChanged();
+        protected Map<String, List<ApplicationModel>> doInBackground(final Integer... integers) {
+            final PackageManager pm = getPackageManager();
+
+            // Read the sequence number first, so a change while resolving is not lost
+            bootCount = PackageChangesUtil.getBootCount(Launcher.this);
+            sequenceNumber = PackageChangesUtil.getSequenceNumber(pm);
+
+            final Set<String> changedPackages = new HashSet<>(packageNames);
+            final List<String> pendingPackages = PackageChangesUtil.getChangedPackages(pm, catalogFile.getSequenceNumber());
+            if (pendingPackages == null) {
+                // The catalog file only has the delivered changes, so it must be scanned again
+                sequenceNumber = PackageChangesUtil.UNKNOWN;
+            } else {
+                changedPackages.addAll(pendingPackages);
+            }
+
+            final Map<String, List<ApplicationModel>> packageApplicationModels = new HashMap<>(changedPackages.size());
+            for (String packageName : changedPackages) {
+                packageApplicationModels.put(packageName, resolvePackage(pm, packageName));
+            }
+
+            return packageApplicationModels;
         }
 
         @Override
-        protected void onProgressUpdate(final Integer... values) {
-            lvApplicationsAdapter.notifyDataSetChanged();
+        protected void onPostExecute(final Map<String, List<ApplicationModel>> result) {
+            // The catalog has been released, the next full update includes these packages
+            if (updateAsyncTask == null) {
+                return;
+            }
+
+            // The shown catalog is never changed, every replacement creates a new one
+            AppCatalog catalog = appCatalog;
+            for (Map.Entry<String, List<ApplicationModel>> entry : result.entrySet()) {
+                catalog = catalog.replacePackage(entry.getKey(), entry.getValue());
+            }
+
+            publishApplications(catalog);
+
+            writeCatalog(bootCount, sequenceNumber);
         }
     }
 }
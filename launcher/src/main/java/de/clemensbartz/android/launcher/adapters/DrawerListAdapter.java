@@ -18,40 +18,111 @@
 package de.clemensbartz.android.launcher.adapters;
 
 import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.graphics.Color;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import de.clemensbartz.android.launcher.R;
+import de.clemensbartz.android.launcher.caches.IconCache;
+import de.clemensbartz.android.launcher.db.ComponentRegistry;
+import de.clemensbartz.android.launcher.models.AppCatalog;
 import de.clemensbartz.android.launcher.models.ApplicationModel;
 
 /**
- * Array adapter for the drawer. Takes an @{ApplicationModel}.
+ * Adapter for the drawer. Takes an @{ApplicationModel}.
+ * <p/>
+ * The adapter shows an immutable catalog of the applications. A new catalog is shown by
+ * swapping the reference, so the list never shows a partially built state. Models are
+ * only created for the items that are shown.
+ * <p/>
+ * Icons are only loaded for items that are shown. Until an icon has been loaded, a
+ * placeholder is shown. Icons of a few items past the shown ones are loaded in advance in
+ * the direction of scrolling. Loads in advance for items that have already been scrolled
+ * past are cancelled, so they do not hold up the icons of the shown items.
  *
  * @author Clemens Bartz
  * @since 1.0
  */
-public final class DrawerListAdapter extends ArrayAdapter<ApplicationModel> {
+public final class DrawerListAdapter extends BaseAdapter {
+
+    /** The number of items whose icons are loaded in advance. */
+    private static final int PREFETCH_COUNT = 8;
 
     /** The resource id. */
     private final int resource;
+    /** The activity. */
+    private final Context context;
+    /** The catalog of the applications. */
+    private AppCatalog catalog = AppCatalog.EMPTY;
+    /** The icon cache. */
+    private final IconCache iconCache;
+    /** The executor loading the icons. */
+    private final ExecutorService executor;
+    /** The handler of the main thread. */
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    /** The placeholder for icons that are not loaded yet. */
+    private final Drawable placeholder = new ColorDrawable(Color.TRANSPARENT);
+    /** The loads in advance, by the component ids of their icons. */
+    private final SparseArray<Future<?>> prefetching = new SparseArray<>();
+    /** The component ids of the icons to load in advance, reused for every item. */
+    private final int[] prefetchKeys = new int[PREFETCH_COUNT];
+    /** The position of the last item that has been shown. */
+    private int lastPosition = 0;
 
     /**
      * Initializes a new adapter.
      * @param context the activity
-     * @param objects the list of application models
+     * @param iconCache the icon cache
+     * @param executor the executor loading the icons
      */
     public DrawerListAdapter(
             final Context context,
-            final List<ApplicationModel> objects) {
+            final IconCache iconCache,
+            final ExecutorService executor) {
 
-        super(context, R.layout.drawer_item, objects);
+        this.context = context;
         this.resource = R.layout.drawer_item;
+        this.iconCache = iconCache;
+        this.executor = executor;
+    }
+
+    /**
+     * Show a new catalog of the applications. This must be called from the main thread.
+     * @param newCatalog the catalog
+     */
+    public void setCatalog(final AppCatalog newCatalog) {
+        catalog = newCatalog;
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return catalog.size();
+    }
+
+    @Override
+    public ApplicationModel getItem(final int position) {
+        return catalog.get(position);
+    }
+
+    @Override
+    public long getItemId(final int position) {
+        return position;
     }
 
     @Override
@@ -63,7 +134,7 @@ public final class DrawerListAdapter extends ArrayAdapter<ApplicationModel> {
         View v = convertView;
 
         if (convertView == null) {
-            v = LayoutInflater.from(getContext()).inflate(resource, null);
+            v = LayoutInflater.from(context).inflate(resource, null);
 
             viewHolder = new ViewHolder();
             viewHolder.icon = v.findViewById(R.id.icon);
@@ -78,13 +149,163 @@ public final class DrawerListAdapter extends ArrayAdapter<ApplicationModel> {
 
         if (resolveInfo != null && viewHolder != null) {
             viewHolder.icon.setContentDescription(resolveInfo.label);
-            viewHolder.icon.setImageDrawable(resolveInfo.icon);
             viewHolder.name.setText(resolveInfo.label);
+            bindIcon(viewHolder, resolveInfo.componentId);
         }
 
+        prefetch(position);
+
         return v;
     }
 
+    /**
+     * Bind the icon of an application to a view holder. If the icon is not in memory, the
+     * placeholder is bound and the icon is loaded asynchronously.
+     * @param viewHolder the view holder
+     * @param key the id of the component of the application
+     */
+    private void bindIcon(final ViewHolder viewHolder, final int key) {
+        if (key == viewHolder.key && viewHolder.request != null) {
+            // The icon of this application is already being loaded
+            return;
+        }
+
+        // The view holder has been recycled, so its request is not needed anymore
+        if (viewHolder.request != null) {
+            viewHolder.request.cancel(false);
+            viewHolder.request = null;
+        }
+        viewHolder.key = key;
+
+        final BitmapDrawable icon = iconCache.getIcon(key);
+        if (icon != null) {
+            viewHolder.icon.setImageDrawable(icon);
+            return;
+        }
+
+        viewHolder.icon.setImageDrawable(placeholder);
+        viewHolder.request = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final BitmapDrawable loadedIcon = loadIcon(key);
+
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Only bind, if the view holder still shows this application
+                        if (key == viewHolder.key) {
+                            viewHolder.request = null;
+
+                            if (loadedIcon != null) {
+                                viewHolder.icon.setImageDrawable(loadedIcon);
+                            }
+                        }
+
+                        // The icon is held until it is bound, then the view keeps it out of
+                        // the pool, even if it has been evicted in the meantime
+                        if (loadedIcon != null) {
+                            iconCache.unholdIcon(key, loadedIcon);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Load the icons of the items following a position in the direction of scrolling.
+     * @param position the position of the item that is shown
+     */
+    private void prefetch(final int position) {
+        int direction = 1;
+        if (position < lastPosition) {
+            direction = -1;
+        }
+        lastPosition = position;
+
+        final int count = getCount();
+
+        // The catalog is read directly, so no model is created for items that are not shown
+        final int[] keys = prefetchKeys;
+        int keyCount = 0;
+        for (int i = 1; i <= PREFETCH_COUNT; i++) {
+            final int prefetchPosition = position + i * direction;
+
+            if (prefetchPosition < 0 || prefetchPosition >= count) {
+                break;
+            }
+
+            keys[keyCount] = catalog.getComponentId(prefetchPosition);
+            keyCount++;
+        }
+
+        cancelPrefetching(keys, keyCount);
+
+        for (int i = 0; i < keyCount; i++) {
+            final int key = keys[i];
+            if (prefetching.get(key) != null || iconCache.peekIcon(key) != null) {
+                continue;
+            }
+
+            prefetching.put(key, executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    final BitmapDrawable loadedIcon = loadIcon(key);
+                    if (loadedIcon != null) {
+                        iconCache.unholdIcon(key, loadedIcon);
+                    }
+
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            // A newer load of the same icon may have been started in the meantime
+                            final Future<?> future = prefetching.get(key);
+                            if (future != null && future.isDone()) {
+                                prefetching.delete(key);
+                            }
+                        }
+                    });
+                }
+            }));
+        }
+    }
+
+    /**
+     * Cancel the loads in advance of all icons that are not needed anymore.
+     * @param keys the component ids of the icons that are still needed
+     * @param keyCount the number of component ids
+     */
+    private void cancelPrefetching(final int[] keys, final int keyCount) {
+        for (int i = prefetching.size() - 1; i >= 0; i--) {
+            final int key = prefetching.keyAt(i);
+
+            boolean needed = false;
+            for (int j = 0; j < keyCount && !needed; j++) {
+                needed = keys[j] == key;
+            }
+
+            if (!needed) {
+                prefetching.valueAt(i).cancel(false);
+                prefetching.removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Load the icon of an application into the icon cache. The icon is held until
+     * {@link IconCache#unholdIcon(int, BitmapDrawable)} is called.
+     * <p/>
+     * This method has to be called from a background thread.
+     * @param componentId the id of the component
+     * @return the icon or <code>null</code>, if the application does not exist anymore
+     */
+    private BitmapDrawable loadIcon(final int componentId) {
+        final Resources resources = context.getResources();
+        final PackageManager pm = context.getPackageManager();
+
+        return iconCache.loadIcon(resources, pm, componentId);
+    }
+
     /**
      * View holder class.
      */
@@ -93,5 +314,9 @@ public final class DrawerListAdapter extends ArrayAdapter<ApplicationModel> {
         private ImageView icon;
         /** The view for the label. */
         private TextView name;
+        /** The component id of the application that is shown. */
+        private int key = ComponentRegistry.NO_ID;
+        /** The request loading the icon, if it is not loaded yet. */
+        private Future<?> request;
     }
 }
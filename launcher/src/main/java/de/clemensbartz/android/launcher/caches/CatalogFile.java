@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2018  Clemens Bartz
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.clemensbartz.android.launcher.caches;
+
+import android.content.Context;
+import android.os.Process;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import de.clemensbartz.android.launcher.db.ComponentRegistry;
+import de.clemensbartz.android.launcher.models.AppCatalog;
+import de.clemensbartz.android.launcher.util.PackageChangesUtil;
+
+/**
+ * A binary file holding the sorted applications of the drawer, so the drawer can be shown
+ * without scanning all packages.
+ * <p/>
+ * The file holds the component, the label and the sort key of every application. Icons are
+ * not part of the file, they are found in the disk tier of the {@link IconCache} by their
+ * component. The file is stamped with the locale of the labels, and with the boot count and
+ * the sequence number of package changes, so only packages that have changed since then have
+ * to be scanned again.
+ * <p/>
+ * Writes are queued on a single thread, so a newer catalog is never overwritten by an older
+ * one. Every write goes to a temporary file, which then replaces the catalog, so a reader
+ * never sees a partially written catalog.
+ *
+ * @author Clemens Bartz
+ * @since 1.4
+ */
+public final class CatalogFile {
+
+    /** The name of the catalog file. */
+    private static final String FILE_NAME = "catalog";
+    /** The name of the temporary file a new catalog is written to. */
+    private static final String TEMP_FILE_NAME = FILE_NAME + ".tmp";
+    /** The name of the writer thread. */
+    private static final String THREAD_NAME = "CatalogWriter";
+    /** The magic number at the start of the file ("CTLG"). */
+    private static final int MAGIC = 0x43544c47;
+    /** The version of the file format. */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The instance.
+     */
+    private static CatalogFile instance;
+
+    /** The catalog file. */
+    private final File file;
+    /** The temporary file a new catalog is written to. */
+    private final File tempFile;
+    /** The executor running the writes one after another. */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, THREAD_NAME);
+        }
+    });
+    /** The sequence number of the catalog that has been read or written last. */
+    private int sequenceNumber = PackageChangesUtil.UNKNOWN;
+
+    /**
+     * @param context the context to get the files directory from
+     * @return the instance of the catalog file
+     */
+    public static synchronized CatalogFile getInstance(final Context context) {
+        if (instance == null) {
+            instance = new CatalogFile(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    /**
+     * Create a new catalog file.
+     * @param context the application context
+     */
+    private CatalogFile(final Context context) {
+        final File directory = context.getNoBackupFilesDir();
+        file = new File(directory, FILE_NAME);
+        tempFile = new File(directory, TEMP_FILE_NAME);
+    }
+
+    /**
+     * Read the catalog.
+     * <p/>
+     * This method has to be called from an async task.
+     * @param locale the current locale
+     * @param bootCount the current boot count
+     * @return the catalog without component ids or <code>null</code>, if there is no catalog for the locale
+     */
+    public synchronized AppCatalog read(final String locale, final int bootCount) {
+        sequenceNumber = PackageChangesUtil.UNKNOWN;
+
+        FileInputStream inputStream = null;
+
+        try {
+            inputStream = new FileInputStream(file);
+
+            final FileChannel channel = inputStream.getChannel();
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC
+                    || buffer.getInt() != FORMAT_VERSION
+                    || !locale.equals(StreamUtil.readString(buffer))) {
+                return null;
+            }
+
+            final int fileBootCount = buffer.getInt();
+            final int fileSequenceNumber = buffer.getInt();
+
+            final int count = StreamUtil.readCount(buffer);
+            final AppCatalog.Builder builder = new AppCatalog.Builder(count);
+
+            for (int i = 0; i < count; i++) {
+                builder.add(
+                        ComponentRegistry.NO_ID,
+                        StreamUtil.readString(buffer),
+                        StreamUtil.readString(buffer),
+                        StreamUtil.readString(buffer),
+                        StreamUtil.readBytes(buffer));
+            }
+
+            // Sequence numbers start again with every boot
+            if (bootCount != PackageChangesUtil.UNKNOWN && bootCount == fileBootCount) {
+                sequenceNumber = fileSequenceNumber;
+            }
+
+            return builder.build();
+        } catch (final IOException | BufferUnderflowException | IllegalArgumentException e) {
+            // No or a broken catalog, all packages have to be scanned
+            return null;
+        } finally {
+            StreamUtil.close(inputStream);
+        }
+    }
+
+    /**
+     * @return the sequence number of package changes the catalog that has been read or
+     * written last is up to date with, or {@link PackageChangesUtil#UNKNOWN}
+     */
+    public synchronized int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    /**
+     * Queue a write of the catalog. Writes are run in the order they have been queued. This
+     * does not block, so it can be called from any thread.
+     * @param locale the locale of the labels
+     * @param bootCount the current boot count
+     * @param newSequenceNumber the sequence number of package changes the applications are up to date with
+     * @param catalog the catalog
+     */
+    public void write(
+            final String locale,
+            final int bootCount,
+            final int newSequenceNumber,
+            final AppCatalog catalog) {
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeFile(locale, bootCount, newSequenceNumber, catalog);
+            }
+        });
+    }
+
+    /**
+     * Write the catalog to the temporary file and replace the catalog file with it.
+     * <p/>
+     * This method is called on the writer thread.
+     * @param locale the locale of the labels
+     * @param bootCount the current boot count
+     * @param newSequenceNumber the sequence number of package changes the applications are up to date with
+     * @param catalog the catalog
+     */
+    private synchronized void writeFile(
+            final String locale,
+            final int bootCount,
+            final int newSequenceNumber,
+            final AppCatalog catalog) {
+
+        FileOutputStream outputStream = null;
+
+        try {
+            outputStream = new FileOutputStream(tempFile);
+
+            final DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream));
+            dataOutputStream.writeInt(MAGIC);
+            dataOutputStream.writeInt(FORMAT_VERSION);
+            StreamUtil.writeString(dataOutputStream, locale);
+            dataOutputStream.writeInt(bootCount);
+            dataOutputStream.writeInt(newSequenceNumber);
+            dataOutputStream.writeInt(catalog.size());
+
+            for (int i = 0, catalogSize = catalog.size(); i < catalogSize; i++) {
+                StreamUtil.writeString(dataOutputStream, catalog.getPackageName(i));
+                StreamUtil.writeString(dataOutputStream, catalog.getClassName(i));
+                StreamUtil.writeString(dataOutputStream, catalog.getLabel(i));
+                StreamUtil.writeBytes(dataOutputStream, catalog.getSortKey(i));
+            }
+
+            dataOutputStream.flush();
+            outputStream.getFD().sync();
+            outputStream.close();
+            outputStream = null;
+
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Could not replace the catalog");
+            }
+
+            sequenceNumber = newSequenceNumber;
+        } catch (final IOException e) {
+            StreamUtil.close(outputStream);
+            tempFile.delete();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2018  Clemens Bartz
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.clemensbartz.android.launcher.caches;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.util.AtomicFile;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import de.clemensbartz.android.launcher.models.ApplicationModel;
+import de.clemensbartz.android.launcher.util.BitmapUtil;
+
+/**
+ * A binary snapshot of the dock, so the dock can be shown on the first frame of a cold start.
+ * <p/>
+ * The file holds the component, the label, the flags and the pixels of the already resized
+ * icon of every dock entry. It is read through a memory-mapped file, which needs neither the
+ * database nor the package manager.
+ *
+ * @author Clemens Bartz
+ * @since 1.4
+ */
+public final class DockSnapshot {
+
+    /** The name of the snapshot file. */
+    private static final String FILE_NAME = "dock.snapshot";
+    /** The magic number at the start of the file ("DOCK"). */
+    private static final int MAGIC = 0x444f434b;
+    /** The version of the file format. */
+    private static final int FORMAT_VERSION = 1;
+
+    /** Flag for disabled entries. */
+    private static final int FLAG_DISABLED = 1;
+    /** Flag for sticky entries. */
+    private static final int FLAG_STICKY = 2;
+
+    /**
+     * The instance.
+     */
+    private static DockSnapshot instance;
+
+    /** The snapshot file. */
+    private final AtomicFile file;
+    /** Copies of the entries that have been written last. */
+    private final List<ApplicationModel> written = new ArrayList<>(0);
+
+    /**
+     * @param context the context to get the files directory from
+     * @return the instance of the snapshot
+     */
+    public static synchronized DockSnapshot getInstance(final Context context) {
+        if (instance == null) {
+            instance = new DockSnapshot(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    /**
+     * Create a new snapshot.
+     * @param context the application context
+     */
+    private DockSnapshot(final Context context) {
+        // The icons are only valid for this device, so the file must not be backed up
+        file = new AtomicFile(new File(context.getNoBackupFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * Read the snapshot. Icons that were created for another screen density are not used.
+     * @param resources the resources to create the icons for
+     * @return the entries of the dock or an empty list, if there is no valid snapshot
+     */
+    public synchronized List<ApplicationModel> read(final Resources resources) {
+        FileInputStream inputStream = null;
+
+        try {
+            inputStream = file.openRead();
+
+            final FileChannel channel = inputStream.getChannel();
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC
+                    || buffer.getInt() != FORMAT_VERSION
+                    || buffer.getInt() != resources.getDisplayMetrics().densityDpi) {
+                return Collections.emptyList();
+            }
+
+            final int count = StreamUtil.readCount(buffer);
+            final List<ApplicationModel> applicationModels = new ArrayList<>(count);
+
+            for (int i = 0; i < count; i++) {
+                final ApplicationModel applicationModel = new ApplicationModel();
+                applicationModel.packageName = StreamUtil.readString(buffer);
+                applicationModel.className = StreamUtil.readString(buffer);
+                applicationModel.label = StreamUtil.readString(buffer);
+
+                final int flags = buffer.get();
+                applicationModel.disabled = (flags & FLAG_DISABLED) != 0;
+                applicationModel.sticky = (flags & FLAG_STICKY) != 0;
+
+                final Bitmap bitmap = BitmapUtil.readPixels(buffer);
+                if (bitmap != null) {
+                    applicationModel.icon = new BitmapDrawable(resources, bitmap);
+                }
+
+                applicationModels.add(applicationModel);
+            }
+
+            return applicationModels;
+        } catch (final IOException | BufferUnderflowException | IllegalArgumentException e) {
+            // No or a broken snapshot, the live model will fill the dock
+            return Collections.emptyList();
+        } finally {
+            StreamUtil.close(inputStream);
+        }
+    }
+
+    /**
+     * Write the snapshot, if the dock has changed since it has been written last.
+     * <p/>
+     * This method has to be called from an async task.
+     * @param resources the resources the icons have been created for
+     * @param applicationModels the entries of the dock
+     */
+    public synchronized void write(final Resources resources, final List<ApplicationModel> applicationModels) {
+        if (isWritten(applicationModels)) {
+            return;
+        }
+
+        FileOutputStream outputStream = null;
+
+        try {
+            outputStream = file.startWrite();
+
+            final DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+            dataOutputStream.writeInt(MAGIC);
+            dataOutputStream.writeInt(FORMAT_VERSION);
+            dataOutputStream.writeInt(resources.getDisplayMetrics().densityDpi);
+            dataOutputStream.writeInt(applicationModels.size());
+
+            for (int i = 0, applicationModelsSize = applicationModels.size(); i < applicationModelsSize; i++) {
+                final ApplicationModel applicationModel = applicationModels.get(i);
+
+                int flags = 0;
+                if (applicationModel.disabled) {
+                    flags |= FLAG_DISABLED;
+                }
+                if (applicationModel.sticky) {
+                    flags |= FLAG_STICKY;
+                }
+
+                StreamUtil.writeString(dataOutputStream, applicationModel.packageName);
+                StreamUtil.writeString(dataOutputStream, applicationModel.className);
+                StreamUtil.writeString(dataOutputStream, String.valueOf(applicationModel.label));
+                dataOutputStream.writeByte(flags);
+                writePixels(dataOutputStream, applicationModel.icon);
+            }
+
+            dataOutputStream.flush();
+            file.finishWrite(outputStream);
+        } catch (final IOException e) {
+            file.failWrite(outputStream);
+            return;
+        }
+
+        written.clear();
+        for (int i = 0, applicationModelsSize = applicationModels.size(); i < applicationModelsSize; i++) {
+            written.add(copyOf(applicationModels.get(i)));
+        }
+    }
+
+    /**
+     * @param applicationModels the entries of the dock
+     * @return <code>true</code>, if exactly these entries have been written last
+     */
+    private boolean isWritten(final List<ApplicationModel> applicationModels) {
+        if (written.size() != applicationModels.size()) {
+            return false;
+        }
+
+        for (int i = 0, writtenSize = written.size(); i < writtenSize; i++) {
+            final ApplicationModel writtenModel = written.get(i);
+            final ApplicationModel applicationModel = applicationModels.get(i);
+
+            if (writtenModel.icon != applicationModel.icon
+                    || writtenModel.disabled != applicationModel.disabled
+                    || writtenModel.sticky != applicationModel.sticky
+                    || !writtenModel.packageName.equals(applicationModel.packageName)
+                    || !writtenModel.className.equals(applicationModel.className)
+                    || !String.valueOf(writtenModel.label).equals(String.valueOf(applicationModel.label))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param applicationModel the model
+     * @return a shallow copy of the model
+     */
+    private static ApplicationModel copyOf(final ApplicationModel applicationModel) {
+        final ApplicationModel copy = new ApplicationModel();
+        copy.packageName = applicationModel.packageName;
+        copy.className = applicationModel.className;
+        copy.label = applicationModel.label;
+        copy.icon = applicationModel.icon;
+        copy.disabled = applicationModel.disabled;
+        copy.sticky = applicationModel.sticky;
+
+        return copy;
+    }
+
+    /**
+     * Write the pixels of an icon.
+     * @param outputStream the stream
+     * @param icon the icon, can be <code>null</code>
+     * @throws IOException if the stream cannot be written
+     */
+    private static void writePixels(final DataOutputStream outputStream, final BitmapDrawable icon) throws IOException {
+        Bitmap bitmap = null;
+        if (icon != null) {
+            bitmap = icon.getBitmap();
+        }
+
+        BitmapUtil.writePixels(outputStream, bitmap);
+    }
+}
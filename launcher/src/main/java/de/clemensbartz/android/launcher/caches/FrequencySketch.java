@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2018  Clemens Bartz
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.clemensbartz.android.launcher.caches;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count-min sketch estimating how often each component id has been used recently, for
+ * the admission policy of the {@link IconMemoryCache}.
+ * <p/>
+ * Every id has a 4 bit counter in each of {@link #DEPTH} rows. Each row hashes the id to
+ * its own long, which packs sixteen counters, so an increment touches up to {@link #DEPTH}
+ * longs. After {@link #SAMPLE_FACTOR} times the width increments, all counters are halved,
+ * so old usage fades out. The sketch does not lock; concurrent increments can get lost,
+ * which only makes the estimate a bit lower.
+ *
+ * @author Clemens Bartz
+ * @since 1.4
+ */
+final class FrequencySketch {
+
+    /** The number of rows. */
+    private static final int DEPTH = 4;
+    /** The number of bits of a counter. */
+    private static final int COUNTER_BITS = 4;
+    /** The maximum value of a counter. */
+    private static final int MAX_COUNT = (1 << COUNTER_BITS) - 1;
+    /** The mask for the first counter of every row of an id. */
+    private static final int START_MASK = DEPTH - 1;
+    /** The number of increments per width, after which the counters are halved. */
+    private static final int SAMPLE_FACTOR = 10;
+    /** Mask for halving all counters of a long at once. */
+    private static final long HALF_MASK = 0x7777777777777777L;
+    /** The seeds of the hash functions of the rows. */
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    /** The shift folding the upper half of a hash into the lower half. */
+    private static final int FOLD_SHIFT = 32;
+    /** The multiplier spreading the ids (the golden ratio). */
+    private static final int SPREAD_MULTIPLIER = 0x9e3779b9;
+    /** The shift folding the upper half of a spread id into the lower half. */
+    private static final int SPREAD_SHIFT = 16;
+
+    /** The counters. */
+    private final AtomicLongArray table;
+    /** The number of increments after which the counters are halved. */
+    private final int sampleSize;
+    /** The number of increments since the counters have been halved. */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Create a new sketch.
+     * @param capacity the expected number of different ids
+     */
+    FrequencySketch(final int capacity) {
+        final int width = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+
+        table = new AtomicLongArray(width);
+        sampleSize = SAMPLE_FACTOR * width;
+    }
+
+    /**
+     * @param id the id of the component
+     * @return the estimated number of recent uses, at most {@link #MAX_COUNT}
+     */
+    int frequency(final int id) {
+        final int hash = spread(id);
+        final int start = (hash & START_MASK) * DEPTH;
+
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            final int offset = (start + i) * COUNTER_BITS;
+            final int count = (int) ((table.get(indexOf(hash, i)) >>> offset) & MAX_COUNT);
+
+            frequency = Math.min(frequency, count);
+        }
+
+        return frequency;
+    }
+
+    /**
+     * Count one use of an id.
+     * @param id the id of the component
+     */
+    void increment(final int id) {
+        final int hash = spread(id);
+        final int start = (hash & START_MASK) * DEPTH;
+
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            added |= incrementAt(indexOf(hash, i), (start + i) * COUNTER_BITS);
+        }
+
+        if (added && size.incrementAndGet() >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Increment one counter, unless it is at its maximum.
+     * @param index the index of the long
+     * @param offset the offset of the counter in the long
+     * @return <code>true</code>, if the counter has been incremented
+     */
+    private boolean incrementAt(final int index, final int offset) {
+        final long mask = (long) MAX_COUNT << offset;
+
+        while (true) {
+            final long value = table.get(index);
+
+            if ((value & mask) == mask) {
+                return false;
+            }
+
+            if (table.compareAndSet(index, value, value + (1L << offset))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Halve all counters.
+     */
+    private void reset() {
+        size.set(sampleSize / 2);
+
+        for (int i = 0, length = table.length(); i < length; i++) {
+            table.set(i, (table.get(i) >>> 1) & HALF_MASK);
+        }
+    }
+
+    /**
+     * @param hash the spread id
+     * @param row the row
+     * @return the index of the long of the row
+     */
+    private int indexOf(final int hash, final int row) {
+        long index = (hash + SEEDS[row]) * SEEDS[row];
+        index += index >>> FOLD_SHIFT;
+
+        return (int) index & (table.length() - 1);
+    }
+
+    /**
+     * @param id the id of the component
+     * @return the id with its bits spread
+     */
+    private static int spread(final int id) {
+        int hash = id * SPREAD_MULTIPLIER;
+        hash ^= hash >>> SPREAD_SHIFT;
+
+        return hash;
+    }
+}
@@ -19,23 +19,46 @@ package de.clemensbartz.android.launcher.caches;
 
 import android.app.Activity;
 import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.content.res.Resources;
 import android.graphics.drawable.BitmapDrawable;
-import android.util.LruCache;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.clemensbartz.android.launcher.db.ComponentRegistry;
+import de.clemensbartz.android.launcher.util.BitmapUtil;
 
 /**
- * A cache to hold icons.
+ * A cache to hold icons. Icons that are not in memory are read from a disk tier, before
+ * they are loaded from their package.
+ * <p/>
+ * Icons are keyed by the id of their component in the {@link ComponentRegistry}, so a
+ * lookup does not create any objects. Lookups never block, so icons can be bound on the
+ * main thread while other threads are loading icons.
+ * <p/>
+ * Icons for the drawer are only referenced by the views of the drawer. When such an icon is
+ * evicted while it is not attached to a view, its bitmap is given back to the pool of
+ * {@link BitmapUtil}. All other icons are shared and never given back.
  *
  * @author Clemens Bartz
  * @since 1.4
  */
 public final class IconCache {
 
-    /** The eviction count when we are running out of memory. */
-    private int evictionCount = 0;
-
-    /** The key for the ic_launcher icon. */
-    public static final String IC_LAUNCHER_KEY = "ic_launcher";
+    /** The key for the ic_launcher icon, which is not the id of any component. */
+    public static final int IC_LAUNCHER_ID = -1;
 
     /** How much of total memory we are going to use. */
     private static final int CACHE_SHARE = 3;
@@ -43,11 +66,19 @@ public final class IconCache {
     private static final int MEBI_FACTOR = 1024 * 1024;
     /** The default cache size (= 1/3rd of 16 MiB). */
     private static final int DEFAULT_CACHE_SIZE = CACHE_SHARE * MEBI_FACTOR;
+    /** The expected number of different components, for the frequencies of use. */
+    private static final int EXPECTED_COMPONENTS = 1024;
+    /** The name of the directory of the disk tier. */
+    private static final String DISK_CACHE_DIRECTORY = "icons";
 
-    /**
-     * The lru cache for icons.
-     */
-    private final LruCache<String, BitmapDrawable> cache;
+    /** The memory tier. */
+    private final IconMemoryCache memoryCache;
+    /** The registry of the components. */
+    private final ComponentRegistry registry;
+    /** The disk tier. */
+    private final IconDiskCache diskCache;
+    /** The package infos for the stamps of the disk tier, by package name. */
+    private final Map<String, PackageInfo> packageInfos = new HashMap<>();
 
     /**
      * The instance.
@@ -82,47 +113,285 @@ public final class IconCache {
             maxMemory = MEBI_FACTOR * memClass / CACHE_SHARE;
         }
 
-        cache = new LruCache<String, BitmapDrawable>(maxMemory) {
-            @Override
-            protected int sizeOf(final String key, final BitmapDrawable value) {
-                return value.getBitmap().getByteCount();
+        memoryCache = new IconMemoryCache(maxMemory, EXPECTED_COMPONENTS);
+
+        registry = ComponentRegistry.getInstance(activity);
+        diskCache = new IconDiskCache(new File(activity.getCacheDir(), DISK_CACHE_DIRECTORY));
+    }
+
+    /**
+     * Get the icon of an activity from memory, from disk, or load it from its package. The
+     * icon is shared, so it can be kept in models.
+     * <p/>
+     * This method has to be called from an async task.
+     * @param resources the resources to create the icon for
+     * @param pm the package manager
+     * @param id the id of the component
+     * @param info the activity
+     * @return the resized icon
+     */
+    public BitmapDrawable loadIcon(final Resources resources, final PackageManager pm, final int id, final ActivityInfo info) {
+        return loadIcon(resources, pm, id, info.packageName, info.name, info, true);
+    }
+
+    /**
+     * Get the icon of an activity from memory, from disk, or load it from its package. The
+     * activity is only looked up, if the icon has to be loaded from its package. This does
+     * not count as a use of the icon, see {@link #getIcon(int)}.
+     * <p/>
+     * The icon is held, so it is not given back to the pool, even if it is evicted before it
+     * is bound to a view. Once it has been bound or is not needed, the hold has to be given
+     * up with {@link #unholdIcon(int, BitmapDrawable)}.
+     * <p/>
+     * This method has to be called from an async task.
+     * @param resources the resources to create the icon for
+     * @param pm the package manager
+     * @param id the id of the component
+     * @return the resized icon or <code>null</code>, if the activity does not exist
+     */
+    public BitmapDrawable loadIcon(final Resources resources, final PackageManager pm, final int id) {
+        final BitmapDrawable icon = memoryCache.hold(id);
+        if (icon != null) {
+            return icon;
+        }
+
+        final String packageName = registry.getPackageName(id);
+        final String className = registry.getClassName(id);
+        if (packageName == null || className == null) {
+            return null;
+        }
+
+        return loadIcon(resources, pm, id, packageName, className, null, false);
+    }
+
+    /**
+     * Get the icon of an activity from memory, from disk, or load it from its package.
+     * @param resources the resources to create the icon for
+     * @param pm the package manager
+     * @param id the id of the component
+     * @param packageName the package name
+     * @param className the class name
+     * @param activityInfo the activity, can be <code>null</code>
+     * @param shared flag, if the icon is kept outside of views and must never be given back
+     *               to the pool; icons that are not shared are held
+     * @return the resized icon or <code>null</code>, if the activity does not exist
+     */
+    private BitmapDrawable loadIcon(
+            final Resources resources,
+            final PackageManager pm,
+            final int id,
+            final String packageName,
+            final String className,
+            final ActivityInfo activityInfo,
+            final boolean shared) {
+
+        BitmapDrawable icon;
+        if (shared) {
+            icon = memoryCache.share(id);
+        } else {
+            icon = memoryCache.hold(id);
+        }
+        if (icon != null) {
+            return icon;
+        }
+
+        final PackageInfo packageInfo = getPackageInfo(pm, packageName);
+        if (packageInfo != null) {
+            icon = diskCache.read(resources, packageInfo, className);
+        }
+
+        if (icon == null) {
+            ActivityInfo info = activityInfo;
+            if (info == null) {
+                try {
+                    info = pm.getActivityInfo(new ComponentName(packageName, className), 0);
+                } catch (final PackageManager.NameNotFoundException e) {
+                    return null;
+                }
             }
-        };
+
+            icon = BitmapUtil.resizeDrawable(resources, info.loadIcon(pm));
+
+            if (packageInfo != null) {
+                diskCache.write(resources, packageInfo, className, icon);
+            }
+        }
+
+        memoryCache.put(id, icon, shared, !shared);
+
+        return icon;
     }
 
     /**
-     * Get the icon for a key.
-     * @param key the icon
-     * @return an icon or <code>null</code>, if no value was saved
+     * Remove all icons of a package that has been uninstalled.
+     * @param packageName the package name
+     */
+    public void removePackage(final String packageName) {
+        invalidate(packageName);
+
+        diskCache.remove(packageName);
+    }
+
+    /**
+     * Delete the icons of all components from disk that are not in the list of installed
+     * launcher activities.
+     * <p/>
+     * This method has to be called from an async task.
+     * @param resolveInfoList the complete list of installed launcher activities
+     */
+    public void retain(final List<ResolveInfo> resolveInfoList) {
+        final Map<String, Set<String>> components = new HashMap<>(resolveInfoList.size());
+        for (int i = 0, resolveInfoListSize = resolveInfoList.size(); i < resolveInfoListSize; i++) {
+            final ActivityInfo activityInfo = resolveInfoList.get(i).activityInfo;
+
+            Set<String> classNames = components.get(activityInfo.packageName);
+            if (classNames == null) {
+                classNames = new HashSet<>(1);
+                components.put(activityInfo.packageName, classNames);
+            }
+            classNames.add(activityInfo.name);
+        }
+
+        diskCache.retain(components);
+    }
+
+    /**
+     * Get the package info for the stamps of the disk tier. Package infos are kept until
+     * the cache is invalidated.
+     * @param pm the package manager
+     * @param packageName the package name
+     * @return the package info or <code>null</code>, if the package does not exist
      */
-    public synchronized BitmapDrawable getIcon(final String key) {
-        final BitmapDrawable drawable = cache.get(key);
+    private PackageInfo getPackageInfo(final PackageManager pm, final String packageName) {
+        synchronized (packageInfos) {
+            final PackageInfo packageInfo = packageInfos.get(packageName);
+
+            if (packageInfo != null) {
+                return packageInfo;
+            }
+        }
 
-        if (drawable != null && drawable.getBitmap().isRecycled()) {
-            cache.remove(key);
+        final PackageInfo packageInfo;
+        try {
+            packageInfo = pm.getPackageInfo(packageName, 0);
+        } catch (final PackageManager.NameNotFoundException e) {
             return null;
         }
 
-        return drawable;
+        synchronized (packageInfos) {
+            packageInfos.put(packageName, packageInfo);
+        }
+
+        return packageInfo;
+    }
+
+    /**
+     * Get the icon for a component. This counts as a use of the icon, so icons that are
+     * shown often are kept rather than icons that have been shown once.
+     * @param id the id of the component
+     * @return an icon or <code>null</code>, if no value was saved
+     */
+    public BitmapDrawable getIcon(final int id) {
+        return memoryCache.get(id);
+    }
+
+    /**
+     * Give up the hold on an icon from {@link #loadIcon(Resources, PackageManager, int)}.
+     * Call this from the main thread after binding the icon, since a bound icon is never
+     * given back to the pool.
+     * @param id the id of the component
+     * @param icon the icon
+     */
+    public void unholdIcon(final int id, final BitmapDrawable icon) {
+        memoryCache.unhold(id, icon);
+    }
+
+    /**
+     * Get the icon for a component without counting a use, e. g. for prefetching.
+     * @param id the id of the component
+     * @return an icon or <code>null</code>, if no value was saved
+     */
+    public BitmapDrawable peekIcon(final int id) {
+        return memoryCache.peek(id);
     }
 
     /**
-     * Put an icon in the cache.
-     * @param key the key
+     * Set the components of the dock. Their icons and the ic_launcher icon are never evicted.
+     * @param ids the ids of the components
+     */
+    public void setDockIds(final int[] ids) {
+        final int[] pinnedIds = Arrays.copyOf(ids, ids.length + 1);
+        pinnedIds[ids.length] = IC_LAUNCHER_ID;
+
+        memoryCache.setPinned(pinnedIds);
+    }
+
+    /**
+     * Put a shared icon in the cache.
+     * @param id the id of the component
      * @param bitmapDrawable the drawable
      */
-    public synchronized void create(final String key, final BitmapDrawable bitmapDrawable) {
-        // Only cache when we are not already full
-        if (cache.evictionCount() - evictionCount <= 0) {
-            cache.put(key, bitmapDrawable);
+    public void create(final int id, final BitmapDrawable bitmapDrawable) {
+        if (bitmapDrawable == null) {
+            return;
         }
+
+        memoryCache.put(id, bitmapDrawable, true, false);
     }
 
     /**
      * Clear the cache.
      */
-    public synchronized void invalidate() {
-        cache.evictAll();
-        evictionCount = cache.evictionCount();
+    public void invalidate() {
+        memoryCache.clear();
+
+        // Packages might have been updated, so read their stamps again
+        synchronized (packageInfos) {
+            packageInfos.clear();
+        }
+    }
+
+    /**
+     * Give up memory step by step, when the system runs low on memory. Every icon is still
+     * on the disk tier, so dropped icons are read from disk with the next use.
+     * <ul>
+     *     <li>When the launcher is hidden, the icons of the drawer are dropped and only the
+     *     pinned icons of the dock are kept.</li>
+     *     <li>Under critical pressure, all icons are dropped from memory.</li>
+     * </ul>
+     * The pool of bitmaps is cleared with the icons of the drawer.
+     * @param level the level of {@link ComponentCallbacks2#onTrimMemory(int)}
+     * @return the memory given up in bytes
+     */
+    public int trimMemory(final int level) {
+        final int size = memoryCache.getSize();
+
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            invalidate();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            memoryCache.removeUnpinned();
+        } else {
+            return 0;
+        }
+
+        final int pooledSize = BitmapUtil.clearPool();
+
+        // Icons loaded in the meantime are not given up
+        return Math.max(0, size - memoryCache.getSize()) + pooledSize;
+    }
+
+    /**
+     * Remove the icons of one package from memory. The disk tier notices the new version
+     * of the package by itself.
+     * @param packageName the package name
+     */
+    public void invalidate(final String packageName) {
+        memoryCache.removePackage(packageName, registry);
+
+        synchronized (packageInfos) {
+            packageInfos.remove(packageName);
+        }
     }
 }
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2018  Clemens Bartz
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.clemensbartz.android.launcher.caches;
+
+import android.content.pm.PackageInfo;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.clemensbartz.android.launcher.util.BitmapUtil;
+
+/**
+ * The disk tier of the {@link IconCache}. Icons are stored already resized, one file per
+ * component in a directory per package.
+ * <p/>
+ * Every file is stamped with the version and the update time of its package and the screen
+ * density. Files with another stamp are ignored and overwritten.
+ * <p/>
+ * The cache is limited to {@link #MAX_SIZE} bytes. When it grows beyond, the files that
+ * have not been read for the longest time are deleted, until it is down to
+ * {@link #TRIM_SIZE} bytes. Reads touch the time of the last modification for this. Files
+ * of components that are not installed anymore are deleted by {@link #retain(Map)}.
+ *
+ * @author Clemens Bartz
+ * @since 1.4
+ */
+final class IconDiskCache {
+
+    /** The magic number at the start of a file ("ICON"). */
+    private static final int MAGIC = 0x49434f4e;
+    /** The version of the file format. */
+    private static final int FORMAT_VERSION = 1;
+    /** The suffix of temporary files. */
+    private static final String TEMP_SUFFIX = ".tmp";
+    /** The maximum size of the files in bytes (32 MiB). */
+    private static final long MAX_SIZE = 32L * 1024L * 1024L;
+    /** The size of the files in bytes after trimming (24 MiB). */
+    private static final long TRIM_SIZE = 24L * 1024L * 1024L;
+    /** The size if it has not been counted yet. */
+    private static final long UNKNOWN_SIZE = -1;
+
+    /** The directory of the cache. */
+    private final File directory;
+    /**
+     * The size of the files in bytes, or {@link #UNKNOWN_SIZE}. Deleted files are not
+     * subtracted, so it is counted again, whenever it seems to be too large.
+     */
+    private long size = UNKNOWN_SIZE;
+
+    /**
+     * Create a new disk cache.
+     * @param directory the directory of the cache
+     */
+    IconDiskCache(final File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Read an icon.
+     * @param resources the resources to create the icon for
+     * @param packageInfo the package of the component
+     * @param className the class name of the component
+     * @return the icon or <code>null</code>, if there is no icon for this version of the package
+     */
+    BitmapDrawable read(final Resources resources, final PackageInfo packageInfo, final String className) {
+        final File file = new File(new File(directory, packageInfo.packageName), className);
+
+        if (!file.isFile()) {
+            return null;
+        }
+
+        FileInputStream inputStream = null;
+
+        try {
+            inputStream = new FileInputStream(file);
+
+            final FileChannel channel = inputStream.getChannel();
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC
+                    || buffer.getInt() != FORMAT_VERSION
+                    || buffer.getInt() != resources.getDisplayMetrics().densityDpi
+                    || buffer.getInt() != packageInfo.versionCode
+                    || buffer.getLong() != packageInfo.lastUpdateTime) {
+                return null;
+            }
+
+            final Bitmap bitmap = BitmapUtil.readPixels(buffer);
+            if (bitmap == null) {
+                return null;
+            }
+
+            // The oldest files are deleted first, when the cache is trimmed
+            file.setLastModified(System.currentTimeMillis());
+
+            return new BitmapDrawable(resources, bitmap);
+        } catch (final IOException | BufferUnderflowException | IllegalArgumentException e) {
+            // A broken file is overwritten with the next write
+            return null;
+        } finally {
+            StreamUtil.close(inputStream);
+        }
+    }
+
+    /**
+     * Write an icon. The file is written to a temporary file first and then renamed, so
+     * readers never see a partial file.
+     * @param resources the resources the icon has been created for
+     * @param packageInfo the package of the component
+     * @param className the class name of the component
+     * @param icon the resized icon
+     */
+    void write(final Resources resources, final PackageInfo packageInfo, final String className, final BitmapDrawable icon) {
+        if (icon == null || icon.getBitmap() == null) {
+            return;
+        }
+
+        final File packageDirectory = new File(directory, packageInfo.packageName);
+        if (!packageDirectory.isDirectory() && !packageDirectory.mkdirs()) {
+            return;
+        }
+
+        File tempFile = null;
+        FileOutputStream outputStream = null;
+
+        try {
+            tempFile = File.createTempFile(className, TEMP_SUFFIX, packageDirectory);
+            outputStream = new FileOutputStream(tempFile);
+
+            final DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+            dataOutputStream.writeInt(MAGIC);
+            dataOutputStream.writeInt(FORMAT_VERSION);
+            dataOutputStream.writeInt(resources.getDisplayMetrics().densityDpi);
+            dataOutputStream.writeInt(packageInfo.versionCode);
+            dataOutputStream.writeLong(packageInfo.lastUpdateTime);
+            BitmapUtil.writePixels(dataOutputStream, icon.getBitmap());
+            dataOutputStream.close();
+            outputStream = null;
+
+            final long length = tempFile.length();
+            if (tempFile.renameTo(new File(packageDirectory, className))) {
+                added(length);
+            } else {
+                delete(tempFile);
+            }
+        } catch (final IOException e) {
+            StreamUtil.close(outputStream);
+            delete(tempFile);
+        }
+    }
+
+    /**
+     * Remove all icons of a package.
+     * @param packageName the package name
+     */
+    void remove(final String packageName) {
+        final File packageDirectory = new File(directory, packageName);
+        final File[] files = packageDirectory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                delete(file);
+            }
+        }
+
+        delete(packageDirectory);
+    }
+
+    /**
+     * Delete the files of all components that are not installed anymore. Temporary files are
+     * left to {@link #trim()}, since they might still be written.
+     * @param components the class names of the installed components, by package name
+     */
+    void retain(final Map<String, Set<String>> components) {
+        final File[] packageDirectories = directory.listFiles();
+        if (packageDirectories == null) {
+            return;
+        }
+
+        for (File packageDirectory : packageDirectories) {
+            final Set<String> classNames = components.get(packageDirectory.getName());
+
+            if (classNames == null) {
+                remove(packageDirectory.getName());
+                continue;
+            }
+
+            final File[] files = packageDirectory.listFiles();
+            if (files == null) {
+                continue;
+            }
+
+            for (File file : files) {
+                if (!file.getName().endsWith(TEMP_SUFFIX) && !classNames.contains(file.getName())) {
+                    delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Count a new file and trim the cache, if it is too large.
+     * @param length the length of the file in bytes
+     */
+    private synchronized void added(final long length) {
+        if (size != UNKNOWN_SIZE) {
+            size = size + length;
+        }
+
+        if (size == UNKNOWN_SIZE || size > MAX_SIZE) {
+            trim();
+        }
+    }
+
+    /**
+     * Count the size of all files and delete the least recently read files, if the cache is
+     * larger than {@link #MAX_SIZE}.
+     * <p/>
+     * The caller has to hold the lock on this cache.
+     */
+    private void trim() {
+        final List<CachedFile> cachedFiles = new ArrayList<>();
+        long totalSize = 0;
+
+        final File[] packageDirectories = directory.listFiles();
+        if (packageDirectories != null) {
+            for (File packageDirectory : packageDirectories) {
+                final File[] files = packageDirectory.listFiles();
+                if (files == null) {
+                    continue;
+                }
+
+                for (File file : files) {
+                    final CachedFile cachedFile = new CachedFile(file);
+                    cachedFiles.add(cachedFile);
+                    totalSize = totalSize + cachedFile.length;
+                }
+            }
+        }
+
+        if (totalSize > MAX_SIZE) {
+            Collections.sort(cachedFiles, new Comparator<CachedFile>() {
+                @Override
+                public int compare(final CachedFile left, final CachedFile right) {
+                    return Long.compare(left.lastModified, right.lastModified);
+                }
+            });
+
+            for (int i = 0, cachedFilesSize = cachedFiles.size(); i < cachedFilesSize && totalSize > TRIM_SIZE; i++) {
+                final CachedFile cachedFile = cachedFiles.get(i);
+
+                delete(cachedFile.file);
+                totalSize = totalSize - cachedFile.length;
+            }
+        }
+
+        size = totalSize;
+    }
+
+    /**
+     * Delete a file and ignore errors.
+     * @param file the file, can be <code>null</code>
+     */
+    private static void delete(final File file) {
+        if (file != null && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * A file of the cache with its length and time of the last modification, which must not
+     * change while the files are sorted.
+     */
+    private static final class CachedFile {
+        /** The file. */
+        private final File file;
+        /** The length in bytes. */
+        private final long length;
+        /** The time of the last modification. */
+        private final long lastModified;
+
+        /**
+         * Create a new cached file.
+         * @param file the file
+         */
+        private CachedFile(final File file) {
+            this.file = file;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+    }
+}
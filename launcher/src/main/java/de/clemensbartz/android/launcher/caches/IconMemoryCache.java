@@ -0,0 +1,703 @@
+/*
+ * Copyright (C) 2018  Clemens Bartz
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.clemensbartz.android.launcher.caches;
+
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import de.clemensbartz.android.launcher.db.ComponentRegistry;
+import de.clemensbartz.android.launcher.util.BitmapUtil;
+
+/**
+ * The memory tier of the {@link IconCache}, a concurrent hash table of icons by component id.
+ * <p/>
+ * Reads take no lock: the buckets are published through an {@link AtomicReferenceArray} and
+ * the chains are linked through volatile fields, so a reader always sees a consistent chain.
+ * Writes lock only one of {@link #SEGMENT_COUNT} segments.
+ * <p/>
+ * Icons are admitted with a windowed TinyLFU policy. New icons enter a small window. When
+ * the window is full, its least recently used icon is a candidate for the main region. If
+ * the cache is full, the candidate only stays, if it has been used at least as often as the
+ * least recently used icon of the main region, as estimated by a {@link FrequencySketch}.
+ * Every put counts as a use, so a new icon is never rejected for not being counted yet.
+ * Scanning through many icons once therefore does not push out icons that are used again
+ * and again.
+ * Pinned icons, like the icons of the dock, are never evicted.
+ * <p/>
+ * Every segment keeps the window and the main region in queues in the order the icons have
+ * been queued. Reads only stamp the time of the access, so they take no lock. An icon that
+ * has been read since it has been queued gets a second chance and is queued again, when it
+ * reaches the head. So the heads of the queues are the least recently used icons of their
+ * segments, and a victim is found by looking at the heads only.
+ * <p/>
+ * Icons that are not shared are given back to the bitmap pool, when they are evicted or
+ * replaced, not attached to a view and not held. Views are only changed on the main thread,
+ * so this is checked there. A loader holds an icon until it has been attached to a view, so
+ * an icon that is evicted in the meantime can still be shown.
+ *
+ * @author Clemens Bartz
+ * @since 1.4
+ */
+final class IconMemoryCache {
+
+    /** The number of segments, a power of two. */
+    private static final int SEGMENT_COUNT = 16;
+    /** The shift of a hash to get its segment. */
+    private static final int SEGMENT_SHIFT = Integer.SIZE - Integer.numberOfTrailingZeros(SEGMENT_COUNT);
+    /** The multiplier spreading the ids over the hashes (the golden ratio). */
+    private static final int HASH_MULTIPLIER = 0x9e3779b9;
+    /** The share of the budget for the window, one in this many bytes. */
+    private static final int WINDOW_DIVISOR = 10;
+    /** The number of holds of a node whose bitmap has been given back to the pool. */
+    private static final int RELEASED = -1;
+
+    /** The segments. */
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+    /** The maximum size of the icons in bytes. */
+    private final int maxSize;
+    /** The maximum size of the icons in the window in bytes. */
+    private final int maxWindowSize;
+    /** The estimated frequencies of use. */
+    private final FrequencySketch sketch;
+    /** The lock for evicting, so only one thread at a time chooses victims. */
+    private final Object evictionLock = new Object();
+    /** The handler of the main thread, to give back bitmaps. */
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    /** The sorted ids of the pinned icons. */
+    private volatile int[] pinnedIds = new int[0];
+
+    /**
+     * Create a new memory tier.
+     * @param maxSize the maximum size of the icons in bytes
+     * @param capacity the expected number of different components
+     */
+    IconMemoryCache(final int maxSize, final int capacity) {
+        this.maxSize = maxSize;
+        this.maxWindowSize = maxSize / WINDOW_DIVISOR;
+        this.sketch = new FrequencySketch(capacity);
+
+        // The buckets do not grow, so nodes never move and readers never miss one
+        final int buckets = Integer.highestOneBit(Math.max(1, capacity / SEGMENT_COUNT - 1)) << 1;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(buckets);
+        }
+    }
+
+    /**
+     * Get an icon and count the use. This never blocks.
+     * @param id the id of the component
+     * @return the icon or <code>null</code>, if it is not in memory
+     */
+    BitmapDrawable get(final int id) {
+        sketch.increment(id);
+
+        return peek(id);
+    }
+
+    /**
+     * Get an icon without counting the use. This never blocks.
+     * @param id the id of the component
+     * @return the icon or <code>null</code>, if it is not in memory
+     */
+    BitmapDrawable peek(final int id) {
+        final int hash = hash(id);
+        final Segment segment = segmentFor(hash);
+        final Node node = segment.find(id, hash);
+
+        if (node == null) {
+            return null;
+        }
+
+        if (node.icon.getBitmap().isRecycled()) {
+            segment.remove(node, hash);
+            return null;
+        }
+
+        node.accessed = System.nanoTime();
+
+        return node.icon;
+    }
+
+    /**
+     * Get an icon without counting the use and hold it, so it is not given back to the pool
+     * before {@link #unhold(int, BitmapDrawable)} is called. This never blocks.
+     * @param id the id of the component
+     * @return the icon or <code>null</code>, if it is not in memory
+     */
+    BitmapDrawable hold(final int id) {
+        final int hash = hash(id);
+        final Segment segment = segmentFor(hash);
+        final Node node = segment.find(id, hash);
+
+        if (node == null) {
+            return null;
+        }
+
+        if (node.icon.getBitmap().isRecycled()) {
+            segment.remove(node, hash);
+            return null;
+        }
+
+        // The bitmap may have been given back to the pool after the node has been found
+        int holds;
+        do {
+            holds = node.holds.get();
+            if (holds == RELEASED) {
+                return null;
+            }
+        } while (!node.holds.compareAndSet(holds, holds + 1));
+
+        node.accessed = System.nanoTime();
+
+        return node.icon;
+    }
+
+    /**
+     * Give up a hold on an icon. If the icon has already been removed, its bitmap is left
+     * to the garbage collector.
+     * @param id the id of the component
+     * @param icon the held icon
+     */
+    void unhold(final int id, final BitmapDrawable icon) {
+        final Node node = segmentFor(hash(id)).find(id, hash(id));
+
+        if (node == null || node.icon != icon) {
+            return;
+        }
+
+        int holds;
+        do {
+            holds = node.holds.get();
+            if (holds <= 0) {
+                return;
+            }
+        } while (!node.holds.compareAndSet(holds, holds - 1));
+    }
+
+    /**
+     * Get an icon without counting the use and mark it as shared, so it is never given
+     * back to the pool. This never blocks.
+     * @param id the id of the component
+     * @return the icon or <code>null</code>, if it is not in memory
+     */
+    BitmapDrawable share(final int id) {
+        final Node node = segmentFor(hash(id)).find(id, hash(id));
+
+        if (node == null) {
+            return null;
+        }
+
+        node.shared = true;
+
+        return peek(id);
+    }
+
+    /**
+     * Put an icon into the window and evict icons, if the budget is exceeded.
+     * @param id the id of the component
+     * @param icon the icon
+     * @param shared flag, if the icon is kept outside of views and must never be given back to the pool
+     * @param held flag, if the icon is held, see {@link #hold(int)}
+     */
+    void put(final int id, final BitmapDrawable icon, final boolean shared, final boolean held) {
+        // Loads that do not go through get() are counted as well
+        sketch.increment(id);
+
+        final int hash = hash(id);
+        final Node replaced = segmentFor(hash).put(new Node(id, icon, shared, held), hash);
+
+        if (replaced != null && replaced.icon != icon) {
+            release(replaced);
+        }
+
+        if (getWindowSize() > maxWindowSize || getSize() > maxSize) {
+            evict();
+        }
+    }
+
+    /**
+     * Pin icons, so they are never evicted. Earlier pins are replaced.
+     * @param ids the ids of the components
+     */
+    void setPinned(final int[] ids) {
+        final int[] sortedIds = Arrays.copyOf(ids, ids.length);
+        Arrays.sort(sortedIds);
+
+        pinnedIds = sortedIds;
+    }
+
+    /**
+     * Remove all icons.
+     */
+    void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Remove all icons that are not pinned.
+     */
+    void removeUnpinned() {
+        synchronized (evictionLock) {
+            final int[] pinned = pinnedIds;
+
+            for (Segment segment : segments) {
+                final AtomicReferenceArray<Node> table = segment.table;
+
+                for (int i = 0, length = table.length(); i < length; i++) {
+                    for (Node node = table.get(i); node != null; node = node.next) {
+                        if (Arrays.binarySearch(pinned, node.id) < 0) {
+                            segment.remove(node, hash(node.id));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all icons of a package. Their bitmaps are given back to the pool.
+     * @param packageName the package name
+     * @param registry the registry to get the package names of the ids from
+     */
+    void removePackage(final String packageName, final ComponentRegistry registry) {
+        for (Segment segment : segments) {
+            final AtomicReferenceArray<Node> table = segment.table;
+
+            for (int i = 0, length = table.length(); i < length; i++) {
+                for (Node node = table.get(i); node != null; node = node.next) {
+                    if (packageName.equals(registry.getPackageName(node.id))
+                            && segment.remove(node, hash(node.id))) {
+                        release(node);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the size of the icons in bytes
+     */
+    int getSize() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size = size + segment.size;
+        }
+
+        return size;
+    }
+
+    /**
+     * @return the size of the icons in the window in bytes
+     */
+    private int getWindowSize() {
+        int windowSize = 0;
+        for (Segment segment : segments) {
+            windowSize = windowSize + segment.windowSize;
+        }
+
+        return windowSize;
+    }
+
+    /**
+     * Move candidates from the window to the main region and evict, until both fit into
+     * their budgets.
+     */
+    private void evict() {
+        synchronized (evictionLock) {
+            while (getWindowSize() > maxWindowSize) {
+                final Node candidate = findOldest(true, null);
+                if (candidate == null) {
+                    break;
+                }
+
+                final Segment segment = segmentFor(hash(candidate.id));
+                if (!segment.promote(candidate, hash(candidate.id)) || getSize() <= maxSize) {
+                    continue;
+                }
+
+                // The cache is full, so either the candidate or the victim has to go. Pinned
+                // icons are never found as candidates, and ties go to the newer icon.
+                final Node victim = findOldest(false, candidate);
+                if (victim != null && sketch.frequency(candidate.id) >= sketch.frequency(victim.id)) {
+                    evict(victim);
+                } else {
+                    evict(candidate);
+                }
+            }
+
+            while (getSize() > maxSize) {
+                Node victim = findOldest(false, null);
+                if (victim == null) {
+                    victim = findOldest(true, null);
+                }
+                if (victim == null) {
+                    break;
+                }
+
+                evict(victim);
+            }
+        }
+    }
+
+    /**
+     * Evict a node, if it is still in its segment, and give back its bitmap.
+     * @param node the node
+     */
+    private void evict(final Node node) {
+        if (segmentFor(hash(node.id)).remove(node, hash(node.id))) {
+            release(node);
+        }
+    }
+
+    /**
+     * Give back the bitmap of a removed node to the pool, if it is not shared, not attached
+     * to a view and not held.
+     * @param node the node
+     */
+    private void release(final Node node) {
+        if (node.shared) {
+            return;
+        }
+
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (node.icon.getCallback() == null && node.holds.compareAndSet(0, RELEASED)) {
+                    BitmapUtil.release(node.icon.getBitmap());
+                }
+            }
+        });
+    }
+
+    /**
+     * Find the least recently used node of the window or the main region, that is not pinned.
+     * Only the heads of the queues of the segments are compared.
+     * <p/>
+     * The caller has to hold the eviction lock.
+     * @param window <code>true</code> for the window, <code>false</code> for the main region
+     * @param excluded a node that must not be found, can be <code>null</code>
+     * @return the node or <code>null</code>, if there are no such nodes
+     */
+    private Node findOldest(final boolean window, final Node excluded) {
+        final int[] pinned = pinnedIds;
+        Node oldest = null;
+
+        for (Segment segment : segments) {
+            final Node node = segment.findOldest(window, pinned, excluded);
+
+            if (node != null && (oldest == null || node.queued - oldest.queued < 0)) {
+                oldest = node;
+            }
+        }
+
+        return oldest;
+    }
+
+    /**
+     * @param hash the hash of an id
+     * @return the segment of the hash
+     */
+    private Segment segmentFor(final int hash) {
+        return segments[hash >>> SEGMENT_SHIFT];
+    }
+
+    /**
+     * @param id the id of a component
+     * @return the hash of the id
+     */
+    private static int hash(final int id) {
+        return id * HASH_MULTIPLIER;
+    }
+
+    /**
+     * A segment of the table. Reads of the buckets take no lock, writes lock the segment.
+     */
+    private static final class Segment {
+
+        /** The buckets. */
+        private volatile AtomicReferenceArray<Node> table;
+        /** The size of the icons in bytes. */
+        private volatile int size = 0;
+        /** The size of the icons in the window in bytes. */
+        private volatile int windowSize = 0;
+        /** The queue of the window. */
+        private AccessQueue windowQueue = new AccessQueue();
+        /** The queue of the main region. */
+        private AccessQueue mainQueue = new AccessQueue();
+
+        /**
+         * Create a new segment.
+         * @param buckets the number of buckets, a power of two
+         */
+        private Segment(final int buckets) {
+            table = new AtomicReferenceArray<>(buckets);
+        }
+
+        /**
+         * Find a node without locking.
+         * @param id the id
+         * @param hash the hash of the id
+         * @return the node or <code>null</code>
+         */
+        private Node find(final int id, final int hash) {
+            final AtomicReferenceArray<Node> buckets = table;
+
+            for (Node node = buckets.get(hash & (buckets.length() - 1)); node != null; node = node.next) {
+                if (node.id == id) {
+                    return node;
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * Put a node in front of its bucket and remove a node with the same id.
+         * @param node the new node, which is in the window
+         * @param hash the hash of its id
+         * @return the removed node or <code>null</code>
+         */
+        private synchronized Node put(final Node node, final int hash) {
+            final Node replaced = find(node.id, hash);
+            if (replaced != null) {
+                remove(replaced, hash);
+            }
+
+            final AtomicReferenceArray<Node> buckets = table;
+            final int index = hash & (buckets.length() - 1);
+
+            // The node is complete before it is published
+            node.next = buckets.get(index);
+            buckets.set(index, node);
+            windowQueue.add(node);
+
+            size = size + node.byteCount;
+            windowSize = windowSize + node.byteCount;
+
+            return replaced;
+        }
+
+        /**
+         * Unlink a node from its bucket. Readers standing on the node can still follow its
+         * link to the rest of the bucket.
+         * @param node the node
+         * @param hash the hash of its id
+         * @return <code>true</code>, if the node has been in this segment
+         */
+        private synchronized boolean remove(final Node node, final int hash) {
+            final AtomicReferenceArray<Node> buckets = table;
+            final int index = hash & (buckets.length() - 1);
+
+            Node previous = null;
+            for (Node current = buckets.get(index); current != null; current = current.next) {
+                if (current == node) {
+                    if (previous == null) {
+                        buckets.set(index, current.next);
+                    } else {
+                        previous.next = current.next;
+                    }
+
+                    size = size - node.byteCount;
+                    if (node.inWindow) {
+                        windowSize = windowSize - node.byteCount;
+                        windowQueue.remove(node);
+                    } else {
+                        mainQueue.remove(node);
+                    }
+
+                    return true;
+                }
+
+                previous = current;
+            }
+
+            return false;
+        }
+
+        /**
+         * Move a node from the window to the main region.
+         * @param node the node
+         * @param hash the hash of its id
+         * @return <code>true</code>, if the node has been in the window of this segment
+         */
+        private synchronized boolean promote(final Node node, final int hash) {
+            if (!node.inWindow || find(node.id, hash) != node) {
+                return false;
+            }
+
+            windowQueue.remove(node);
+            node.inWindow = false;
+            windowSize = windowSize - node.byteCount;
+            mainQueue.add(node);
+
+            return true;
+        }
+
+        /**
+         * Find the least recently used node of the window or the main region of this
+         * segment. Nodes that have been read since they have been queued, pinned nodes and
+         * the excluded node are queued again on the way, so every node is looked at once
+         * at most.
+         * @param window <code>true</code> for the window, <code>false</code> for the main region
+         * @param pinned the sorted ids of the pinned icons
+         * @param excluded a node that must not be found, can be <code>null</code>
+         * @return the node or <code>null</code>, if there are no such nodes
+         */
+        private synchronized Node findOldest(final boolean window, final int[] pinned, final Node excluded) {
+            final AccessQueue queue;
+            if (window) {
+                queue = windowQueue;
+            } else {
+                queue = mainQueue;
+            }
+
+            for (int i = 0, count = queue.count; i < count; i++) {
+                final Node node = queue.head;
+
+                if (node.accessed - node.queued <= 0 && node != excluded && Arrays.binarySearch(pinned, node.id) < 0) {
+                    return node;
+                }
+
+                // Give the node a second chance
+                queue.remove(node);
+                queue.add(node);
+            }
+
+            return null;
+        }
+
+        /**
+         * Remove all nodes.
+         */
+        private synchronized void clear() {
+            table = new AtomicReferenceArray<>(table.length());
+            windowQueue = new AccessQueue();
+            mainQueue = new AccessQueue();
+            size = 0;
+            windowSize = 0;
+        }
+    }
+
+    /**
+     * A queue of nodes in the order they have been queued. It is guarded by the lock on
+     * its segment.
+     */
+    private static final class AccessQueue {
+        /** The first node. */
+        private Node head;
+        /** The last node. */
+        private Node tail;
+        /** The number of nodes. */
+        private int count = 0;
+
+        /**
+         * Add a node at the tail and stamp the time it has been queued.
+         * @param node the node
+         */
+        private void add(final Node node) {
+            node.queued = System.nanoTime();
+            node.before = tail;
+            node.after = null;
+
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.after = node;
+            }
+            tail = node;
+            count++;
+        }
+
+        /**
+         * Remove a node.
+         * @param node the node, which must be in this queue
+         */
+        private void remove(final Node node) {
+            if (node.before == null) {
+                head = node.after;
+            } else {
+                node.before.after = node.after;
+            }
+
+            if (node.after == null) {
+                tail = node.before;
+            } else {
+                node.after.before = node.before;
+            }
+
+            node.before = null;
+            node.after = null;
+            count--;
+        }
+    }
+
+    /**
+     * An icon in a bucket.
+     */
+    private static final class Node {
+        /** The id of the component. */
+        private final int id;
+        /** The icon. */
+        private final BitmapDrawable icon;
+        /** The size of the icon in bytes. */
+        private final int byteCount;
+        /** The next node of the bucket. */
+        private volatile Node next;
+        /** The time of the last access, used for eviction. */
+        private volatile long accessed;
+        /** The time the node has been queued last. */
+        private volatile long queued;
+        /** The previous node of the queue, guarded by the lock on the segment. */
+        private Node before;
+        /** The next node of the queue, guarded by the lock on the segment. */
+        private Node after;
+        /** Flag, if the node is in the window. Only changed with the lock on its segment. */
+        private volatile boolean inWindow = true;
+        /** Flag, if the icon is kept outside of views. */
+        private volatile boolean shared;
+        /** The number of holds, or {@link #RELEASED}, once the bitmap is in the pool. */
+        private final AtomicInteger holds;
+
+        /**
+         * Create a new node.
+         * @param id the id of the component
+         * @param icon the icon
+         * @param shared flag, if the icon is kept outside of views
+         * @param held flag, if the icon is held by its loader
+         */
+        private Node(final int id, final BitmapDrawable icon, final boolean shared, final boolean held) {
+            this.id = id;
+            this.icon = icon;
+            this.shared = shared;
+            if (held) {
+                this.holds = new AtomicInteger(1);
+            } else {
+                this.holds = new AtomicInteger(0);
+            }
+            this.byteCount = icon.getBitmap().getByteCount();
+            this.accessed = System.nanoTime();
+        }
+    }
+}
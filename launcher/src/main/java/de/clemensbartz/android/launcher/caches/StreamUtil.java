@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2018  Clemens Bartz
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.clemensbartz.android.launcher.caches;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Util used to write and read the binary files of the caches. Files are written with a
+ * {@link DataOutputStream} and read from a memory-mapped {@link ByteBuffer}.
+ *
+ * @author Clemens Bartz
+ * @since 1.4
+ */
+final class StreamUtil {
+
+    /**
+     * Hidden constructor.
+     */
+    private StreamUtil() {
+    }
+
+    /**
+     * Write a length-prefixed UTF-8 string.
+     * @param outputStream the stream
+     * @param value the string
+     * @throws IOException if the stream cannot be written
+     */
+    static void writeString(final DataOutputStream outputStream, final String value) throws IOException {
+        writeBytes(outputStream, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read a length-prefixed UTF-8 string.
+     * @param buffer the buffer
+     * @return the string
+     */
+    static String readString(final ByteBuffer buffer) {
+        return new String(readBytes(buffer), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write length-prefixed bytes.
+     * @param outputStream the stream
+     * @param bytes the bytes
+     * @throws IOException if the stream cannot be written
+     */
+    static void writeBytes(final DataOutputStream outputStream, final byte[] bytes) throws IOException {
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+
+    /**
+     * Read length-prefixed bytes.
+     * @param buffer the buffer
+     * @return the bytes
+     * @throws IllegalArgumentException if the length is broken
+     */
+    static byte[] readBytes(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[readCount(buffer)];
+        buffer.get(bytes);
+
+        return bytes;
+    }
+
+    /**
+     * Read a length or a number of entries. Every byte or entry takes at least one byte
+     * of the buffer, so a broken file cannot make the reader allocate more than the file.
+     * @param buffer the buffer
+     * @return the length or the number of entries
+     * @throws IllegalArgumentException if the length is negative or longer than the rest of the buffer
+     */
+    static int readCount(final ByteBuffer buffer) {
+        final int count = buffer.getInt();
+
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IllegalArgumentException("Broken length " + count);
+        }
+
+        return count;
+    }
+
+    /**
+     * Close a stream and ignore errors.
+     * @param closeable the stream, can be <code>null</code>
+     */
+    static void close(final Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (final IOException e) {
+                // Nothing to do here
+            }
+        }
+    }
+}
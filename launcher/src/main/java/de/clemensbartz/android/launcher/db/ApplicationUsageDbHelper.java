@@ -18,8 +18,12 @@
 package de.clemensbartz.android.launcher.db;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import de.clemensbartz.android.launcher.util.FrecencyUtil;
 
 /**
  * Helper class for opening a SQLite database.
@@ -31,7 +35,7 @@ public final class ApplicationUsageDbHelper extends SQLiteOpenHelper {
     /** The instance for static lookup. */
     private static ApplicationUsageDbHelper instance;
     /** The version of the database. */
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 7;
     /** The database name. */
     private static final String DATABASE_NAME = "ApplicationUsage.db";
 
@@ -55,29 +59,93 @@ public final class ApplicationUsageDbHelper extends SQLiteOpenHelper {
      */
     private ApplicationUsageDbHelper(final Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+        // Let readers work on a snapshot while the writer thread is writing
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
     public void onCreate(final SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL(ApplicationUsageModel.CREATE_COMPONENT_SQL);
+        sqLiteDatabase.execSQL(ApplicationUsageModel.CREATE_INDEX_COMPONENT_NAME);
         sqLiteDatabase.execSQL(ApplicationUsageModel.CREATE_SQL);
+        sqLiteDatabase.execSQL(ApplicationUsageModel.CREATE_INDEX_SCORE);
+        sqLiteDatabase.execSQL(ApplicationUsageModel.CREATE_JOURNAL_SQL);
     }
 
     @Override
     public void onUpgrade(final SQLiteDatabase sqLiteDatabase,
                           final int oldVersion,
                           final int newVersion) {
-        if (newVersion - oldVersion != 1) {
-            recreateDatabase(sqLiteDatabase);
-        } else {
-            switch (oldVersion) {
+        // Apply the upgrades one version after another
+        for (int version = oldVersion; version < newVersion; version++) {
+            switch (version) {
                 case 2:
                     sqLiteDatabase.execSQL(ApplicationUsageModel.ALTER_TABLE_2);
                     sqLiteDatabase.execSQL(ApplicationUsageModel.UPDATE_CONTENT_2);
                     break;
+                case 3:
+                    sqLiteDatabase.execSQL(ApplicationUsageModel.DELETE_INVALID_3);
+                    sqLiteDatabase.execSQL(ApplicationUsageModel.MERGE_DUPLICATES_3);
+                    sqLiteDatabase.execSQL(ApplicationUsageModel.DELETE_DUPLICATES_3);
+                    sqLiteDatabase.execSQL(ApplicationUsageModel.CREATE_INDEX_COMPONENT);
+                    break;
+                case 4:
+                    sqLiteDatabase.execSQL(ApplicationUsageModel.ALTER_TABLE_SCORE_4);
+                    sqLiteDatabase.execSQL(ApplicationUsageModel.ALTER_TABLE_LAST_USED_4);
+                    seedScores(sqLiteDatabase);
+                    sqLiteDatabase.execSQL(ApplicationUsageModel.CREATE_INDEX_SCORE);
+                    break;
+                case 5:
+                    sqLiteDatabase.execSQL(ApplicationUsageModel.CREATE_COMPONENT_SQL);
+                    sqLiteDatabase.execSQL(ApplicationUsageModel.CREATE_INDEX_COMPONENT_NAME);
+                    sqLiteDatabase.execSQL(ApplicationUsageModel.INSERT_COMPONENTS_5);
+                    sqLiteDatabase.execSQL(ApplicationUsageModel.RENAME_TABLE_5);
+                    sqLiteDatabase.execSQL(ApplicationUsageModel.CREATE_SQL);
+                    sqLiteDatabase.execSQL(ApplicationUsageModel.COPY_CONTENT_5);
+                    sqLiteDatabase.execSQL(ApplicationUsageModel.DROP_TABLE_5);
+                    sqLiteDatabase.execSQL(ApplicationUsageModel.CREATE_INDEX_SCORE);
+                    break;
+                case 6:
+                    sqLiteDatabase.execSQL(ApplicationUsageModel.CREATE_JOURNAL_SQL);
+                    break;
                 default:
                     recreateDatabase(sqLiteDatabase);
-                    break;
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Give every row a score as if all of its launches happened now. There is no logarithm
+     * in SQLite, so this is done row by row.
+     * @param sqLiteDatabase the database to use
+     */
+    private void seedScores(final SQLiteDatabase sqLiteDatabase) {
+        final long now = System.currentTimeMillis();
+
+        final Cursor c = sqLiteDatabase.rawQuery(ApplicationUsageModel.SELECT_USAGE_4, null);
+        if (c == null) {
+            return;
+        }
+
+        final SQLiteStatement statement = sqLiteDatabase.compileStatement(ApplicationUsageModel.UPDATE_CONTENT_4);
+        try {
+            for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+                final int usage = c.getInt(1);
+
+                statement.bindDouble(1, FrecencyUtil.fromCount(usage, now));
+                if (usage > 0) {
+                    statement.bindLong(2, now);
+                } else {
+                    statement.bindLong(2, 0);
+                }
+                statement.bindLong(3, c.getLong(0));
+                statement.executeUpdateDelete();
             }
+        } finally {
+            statement.close();
+            c.close();
         }
     }
 
@@ -87,6 +155,8 @@ public final class ApplicationUsageDbHelper extends SQLiteOpenHelper {
      */
     private void recreateDatabase(final SQLiteDatabase sqLiteDatabase) {
         sqLiteDatabase.execSQL(ApplicationUsageModel.DROP_SQL);
+        sqLiteDatabase.execSQL(ApplicationUsageModel.DROP_COMPONENT_SQL);
+        sqLiteDatabase.execSQL(ApplicationUsageModel.DROP_JOURNAL_SQL);
         onCreate(sqLiteDatabase);
     }
 }
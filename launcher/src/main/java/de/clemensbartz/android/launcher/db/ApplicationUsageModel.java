@@ -28,16 +28,26 @@ import android.provider.BaseColumns;
 public final class ApplicationUsageModel {
     /** A comma. */
     private static final String COMMA = ",";
+    /** The rows of the same component as the updated row, for Version 3 of the database. */
+    private static final String FROM_DUPLICATES = " FROM "
+                    + ApplicationUsage.TABLE_NAME
+                    + " d WHERE d."
+                    + ApplicationUsage.COLUMN_NAME_PACKAGE_NAME
+                    + "="
+                    + ApplicationUsage.TABLE_NAME + "."
+                    + ApplicationUsage.COLUMN_NAME_PACKAGE_NAME
+                    + " AND d."
+                    + ApplicationUsage.COLUMN_NAME_CLASS_NAME
+                    + "="
+                    + ApplicationUsage.TABLE_NAME + "."
+                    + ApplicationUsage.COLUMN_NAME_CLASS_NAME;
     /** The create SQL String. */
     static final String CREATE_SQL =
             "CREATE TABLE IF NOT EXISTS "
             + ApplicationUsage.TABLE_NAME
             + " ("
-                    + ApplicationUsage.COLUMN_NAME_PACKAGE_NAME + " "
-                    + ApplicationUsage.COLUMN_TYPE_PACKAGE_NAME
-                    + COMMA + " "
-                    + ApplicationUsage.COLUMN_NAME_CLASS_NAME + " "
-                    + ApplicationUsage.COLUMN_TYPE_CLASS_NAME
+                    + ApplicationUsage.COLUMN_NAME_COMPONENT + " "
+                    + ApplicationUsage.COLUMN_TYPE_COMPONENT
                     + COMMA + " "
                     + ApplicationUsage.COLUMN_NAME_USAGE + " "
                     + ApplicationUsage.COLUMN_TYPE_USAGE
@@ -47,6 +57,12 @@ public final class ApplicationUsageModel {
                     + COMMA + " "
                     + ApplicationUsage.COLUMN_NAME_STICKY + " "
                     + ApplicationUsage.COLUMN_TYPE_STICKY
+                    + COMMA + " "
+                    + ApplicationUsage.COLUMN_NAME_SCORE + " "
+                    + ApplicationUsage.COLUMN_TYPE_SCORE
+                    + COMMA + " "
+                    + ApplicationUsage.COLUMN_NAME_LAST_USED + " "
+                    + ApplicationUsage.COLUMN_TYPE_LAST_USED
             + ")";
     /** The DDM update for Version 2 of the database. */
     static final String ALTER_TABLE_2 = "ALTER TABLE "
@@ -60,10 +76,243 @@ public final class ApplicationUsageModel {
                     + " SET "
                     + ApplicationUsage.COLUMN_NAME_STICKY
                     + "=0";
+    /** The content update for Version 3 of the database: remove rows without a component. */
+    static final String DELETE_INVALID_3 = "DELETE FROM "
+                    + ApplicationUsage.TABLE_NAME
+                    + " WHERE "
+                    + ApplicationUsage.COLUMN_NAME_PACKAGE_NAME
+                    + " IS NULL OR "
+                    + ApplicationUsage.COLUMN_NAME_CLASS_NAME
+                    + " IS NULL";
+    /**
+     * The content update for Version 3 of the database: merge the duplicates of a component
+     * into the row that is kept, by adding their usage and keeping their flags.
+     */
+    static final String MERGE_DUPLICATES_3 = "UPDATE "
+                    + ApplicationUsage.TABLE_NAME
+                    + " SET "
+                    + ApplicationUsage.COLUMN_NAME_USAGE
+                    + "=MIN((SELECT SUM(d."
+                    + ApplicationUsage.COLUMN_NAME_USAGE
+                    + ")" + FROM_DUPLICATES + "), " + Integer.MAX_VALUE + ")" + COMMA
+                    + ApplicationUsage.COLUMN_NAME_DISABLED
+                    + "=(SELECT MAX(d."
+                    + ApplicationUsage.COLUMN_NAME_DISABLED
+                    + ")" + FROM_DUPLICATES + ")" + COMMA
+                    + ApplicationUsage.COLUMN_NAME_STICKY
+                    + "=(SELECT MAX(d."
+                    + ApplicationUsage.COLUMN_NAME_STICKY
+                    + ")" + FROM_DUPLICATES + ")"
+                    + " WHERE rowid IN (SELECT MAX(rowid) FROM "
+                    + ApplicationUsage.TABLE_NAME
+                    + " GROUP BY "
+                    + ApplicationUsage.COLUMN_NAME_PACKAGE_NAME
+                    + COMMA
+                    + ApplicationUsage.COLUMN_NAME_CLASS_NAME
+                    + " HAVING COUNT(*) > 1)";
+    /** The content update for Version 3 of the database: keep only one row per component. */
+    static final String DELETE_DUPLICATES_3 = "DELETE FROM "
+                    + ApplicationUsage.TABLE_NAME
+                    + " WHERE rowid NOT IN (SELECT MAX(rowid) FROM "
+                    + ApplicationUsage.TABLE_NAME
+                    + " GROUP BY "
+                    + ApplicationUsage.COLUMN_NAME_PACKAGE_NAME
+                    + COMMA
+                    + ApplicationUsage.COLUMN_NAME_CLASS_NAME
+                    + ")";
+    /** The DDM update for Version 4 of the database: the score column. */
+    static final String ALTER_TABLE_SCORE_4 = "ALTER TABLE "
+                    + ApplicationUsage.TABLE_NAME
+                    + " ADD COLUMN "
+                    + ApplicationUsage.COLUMN_NAME_SCORE + " "
+                    + ApplicationUsage.COLUMN_TYPE_SCORE;
+    /** The DDM update for Version 4 of the database: the last used column. */
+    static final String ALTER_TABLE_LAST_USED_4 = "ALTER TABLE "
+                    + ApplicationUsage.TABLE_NAME
+                    + " ADD COLUMN "
+                    + ApplicationUsage.COLUMN_NAME_LAST_USED + " "
+                    + ApplicationUsage.COLUMN_TYPE_LAST_USED;
+    /** The query for seeding the score in Version 4 of the database. */
+    static final String SELECT_USAGE_4 = "SELECT rowid, "
+                    + ApplicationUsage.COLUMN_NAME_USAGE
+                    + " FROM "
+                    + ApplicationUsage.TABLE_NAME;
+    /** The content update for Version 4 of the database: seed the score from the usage. */
+    static final String UPDATE_CONTENT_4 = "UPDATE "
+                    + ApplicationUsage.TABLE_NAME
+                    + " SET "
+                    + ApplicationUsage.COLUMN_NAME_SCORE
+                    + "=?, "
+                    + ApplicationUsage.COLUMN_NAME_LAST_USED
+                    + "=? WHERE rowid=?";
+    /** The index on sticky and score in the order of the dock, added in Version 5 of the database. */
+    static final String CREATE_INDEX_SCORE =
+            "CREATE INDEX IF NOT EXISTS "
+            + ApplicationUsage.INDEX_NAME_SCORE
+            + " ON "
+            + ApplicationUsage.TABLE_NAME
+            + " ("
+                    + ApplicationUsage.COLUMN_NAME_STICKY
+                    + " DESC" + COMMA + " "
+                    + ApplicationUsage.COLUMN_NAME_SCORE
+                    + " DESC"
+            + ")";
+    /** The unique index on the component, added in Version 4 of the database. */
+    static final String CREATE_INDEX_COMPONENT =
+            "CREATE UNIQUE INDEX IF NOT EXISTS "
+            + ApplicationUsage.INDEX_NAME_COMPONENT
+            + " ON "
+            + ApplicationUsage.TABLE_NAME
+            + " ("
+                    + ApplicationUsage.COLUMN_NAME_PACKAGE_NAME
+                    + COMMA + " "
+                    + ApplicationUsage.COLUMN_NAME_CLASS_NAME
+            + ")";
+    /** The create SQL String for the components, added in Version 6 of the database. */
+    static final String CREATE_COMPONENT_SQL =
+            "CREATE TABLE IF NOT EXISTS "
+            + Component.TABLE_NAME
+            + " ("
+                    + Component._ID + " "
+                    + Component.COLUMN_TYPE_ID
+                    + COMMA + " "
+                    + Component.COLUMN_NAME_PACKAGE_NAME + " "
+                    + Component.COLUMN_TYPE_PACKAGE_NAME
+                    + COMMA + " "
+                    + Component.COLUMN_NAME_CLASS_NAME + " "
+                    + Component.COLUMN_TYPE_CLASS_NAME
+            + ")";
+    /** The unique index on the names of a component, added in Version 6 of the database. */
+    static final String CREATE_INDEX_COMPONENT_NAME =
+            "CREATE UNIQUE INDEX IF NOT EXISTS "
+            + Component.INDEX_NAME_NAME
+            + " ON "
+            + Component.TABLE_NAME
+            + " ("
+                    + Component.COLUMN_NAME_PACKAGE_NAME
+                    + COMMA + " "
+                    + Component.COLUMN_NAME_CLASS_NAME
+            + ")";
+    /** The content update for Version 5 of the database: give every component an id. */
+    static final String INSERT_COMPONENTS_5 = "INSERT OR IGNORE INTO "
+                    + Component.TABLE_NAME
+                    + " ("
+                    + Component.COLUMN_NAME_PACKAGE_NAME
+                    + COMMA
+                    + Component.COLUMN_NAME_CLASS_NAME
+                    + ") SELECT "
+                    + ApplicationUsage.COLUMN_NAME_PACKAGE_NAME
+                    + COMMA
+                    + ApplicationUsage.COLUMN_NAME_CLASS_NAME
+                    + " FROM "
+                    + ApplicationUsage.TABLE_NAME;
+    /** The name of the usage table of Version 5 while it is copied. */
+    private static final String TABLE_NAME_5 = ApplicationUsage.TABLE_NAME + "_5";
+    /** The DDM update for Version 5 of the database: keep the old table for copying. */
+    static final String RENAME_TABLE_5 = "ALTER TABLE "
+                    + ApplicationUsage.TABLE_NAME
+                    + " RENAME TO "
+                    + TABLE_NAME_5;
+    /** The content update for Version 5 of the database: copy the usage keyed by component id. */
+    static final String COPY_CONTENT_5 = "INSERT INTO "
+                    + ApplicationUsage.TABLE_NAME
+                    + " SELECT c."
+                    + Component._ID
+                    + ", u." + ApplicationUsage.COLUMN_NAME_USAGE
+                    + ", u." + ApplicationUsage.COLUMN_NAME_DISABLED
+                    + ", u." + ApplicationUsage.COLUMN_NAME_STICKY
+                    + ", u." + ApplicationUsage.COLUMN_NAME_SCORE
+                    + ", u." + ApplicationUsage.COLUMN_NAME_LAST_USED
+                    + " FROM "
+                    + TABLE_NAME_5
+                    + " u JOIN "
+                    + Component.TABLE_NAME
+                    + " c ON c."
+                    + Component.COLUMN_NAME_PACKAGE_NAME
+                    + "=u."
+                    + ApplicationUsage.COLUMN_NAME_PACKAGE_NAME
+                    + " AND c."
+                    + Component.COLUMN_NAME_CLASS_NAME
+                    + "=u."
+                    + ApplicationUsage.COLUMN_NAME_CLASS_NAME;
+    /** The DDM update for Version 5 of the database: drop the old table and its indexes. */
+    static final String DROP_TABLE_5 = "DROP TABLE "
+                    + TABLE_NAME_5;
+    /** Insert an empty row for a component, if it does not exist yet. */
+    public static final String INSERT_OR_IGNORE =
+            "INSERT OR IGNORE INTO "
+            + ApplicationUsage.TABLE_NAME
+            + " ("
+            + ApplicationUsage.COLUMN_NAME_COMPONENT
+                    + ", "
+            + ApplicationUsage.COLUMN_NAME_USAGE
+                    + ", "
+            + ApplicationUsage.COLUMN_NAME_DISABLED
+                    + ", "
+            + ApplicationUsage.COLUMN_NAME_STICKY
+            + ") VALUES (?, 0, 0, 0)";
+    /** Insert a component with its id, if it does not exist yet. */
+    public static final String INSERT_COMPONENT =
+            "INSERT OR IGNORE INTO "
+            + Component.TABLE_NAME
+            + " ("
+            + Component._ID
+                    + ", "
+            + Component.COLUMN_NAME_PACKAGE_NAME
+                    + ", "
+            + Component.COLUMN_NAME_CLASS_NAME
+            + ") VALUES (?, ?, ?)";
+    /** The create SQL String for the journal sequence. */
+    static final String CREATE_JOURNAL_SQL =
+            "CREATE TABLE IF NOT EXISTS "
+            + Journal.TABLE_NAME
+            + " ("
+                    + Journal._ID + " "
+                    + Journal.COLUMN_TYPE_ID
+                    + COMMA + " "
+                    + Journal.COLUMN_NAME_SEQUENCE + " "
+                    + Journal.COLUMN_TYPE_SEQUENCE
+            + ")";
+    /**
+     * Raise the sequence of the launches that have been written, the only row of the table.
+     * It never goes down, even if a batch only holds older launches.
+     */
+    public static final String REPLACE_JOURNAL_SEQUENCE =
+            "INSERT OR REPLACE INTO "
+            + Journal.TABLE_NAME
+            + " ("
+            + Journal._ID
+                    + ", "
+            + Journal.COLUMN_NAME_SEQUENCE
+            + ") VALUES (" + Journal.ROW_ID + ", MAX(?, COALESCE((SELECT "
+            + Journal.COLUMN_NAME_SEQUENCE
+            + " FROM "
+            + Journal.TABLE_NAME
+            + " WHERE "
+            + Journal._ID
+            + "=" + Journal.ROW_ID
+            + "), 0)))";
+    /** Select the sequence of the launches that have been written. */
+    public static final String SELECT_JOURNAL_SEQUENCE =
+            "SELECT "
+            + Journal.COLUMN_NAME_SEQUENCE
+            + " FROM "
+            + Journal.TABLE_NAME
+            + " WHERE "
+            + Journal._ID
+            + "=" + Journal.ROW_ID;
     /** The drop SQL String. */
     static final String DROP_SQL =
-            "DROP TABLE "
+            "DROP TABLE IF EXISTS "
             + ApplicationUsage.TABLE_NAME;
+    /** The drop SQL String for the components. */
+    static final String DROP_COMPONENT_SQL =
+            "DROP TABLE IF EXISTS "
+            + Component.TABLE_NAME;
+    /** The drop SQL String for the journal sequence. */
+    static final String DROP_JOURNAL_SQL =
+            "DROP TABLE IF EXISTS "
+            + Journal.TABLE_NAME;
 
     /**
      * Hidden constructor.
@@ -78,14 +327,18 @@ public final class ApplicationUsageModel {
     public static class ApplicationUsage implements BaseColumns {
         /** Table name. */
         public static final String TABLE_NAME = "ApplicationUsage";
-        /** Name of the column for package name. */
+        /** Name of the unique index on package name and class name. */
+        private static final String INDEX_NAME_COMPONENT = "ApplicationUsage_component";
+        /** Name of the index on sticky and score. */
+        private static final String INDEX_NAME_SCORE = "ApplicationUsage_score";
+        /** Name of the column for package name, up to Version 5 of the database. */
         public static final String COLUMN_NAME_PACKAGE_NAME = "packagename";
-        /** Type of the column for package name. */
-        private static final String COLUMN_TYPE_PACKAGE_NAME = "TEXT";
-        /** Name of the column for class name. */
+        /** Name of the column for class name, up to Version 5 of the database. */
         public static final String COLUMN_NAME_CLASS_NAME = "classname";
-        /** Type of the column for class name. */
-        private static final String COLUMN_TYPE_CLASS_NAME = "TEXT";
+        /** Name of the column for the id of the component. */
+        public static final String COLUMN_NAME_COMPONENT = "component";
+        /** Type of the column for the id of the component. */
+        private static final String COLUMN_TYPE_COMPONENT = "INTEGER PRIMARY KEY";
         /** Name of the column for usage. */
         public static final String COLUMN_NAME_USAGE = "usage";
         /** Type of the column for usage. */
@@ -98,5 +351,50 @@ public final class ApplicationUsageModel {
         public static final String COLUMN_NAME_STICKY = "sticky";
         /** Type of the column for sticky. */
         public static final String COLUMN_TYPE_STICKY = "BOOLEAN";
+        /** Name of the column for the time-decayed score. */
+        public static final String COLUMN_NAME_SCORE = "score";
+        /** Type of the column for the time-decayed score. */
+        private static final String COLUMN_TYPE_SCORE = "REAL DEFAULT 0";
+        /** Name of the column for the time of the last launch. */
+        public static final String COLUMN_NAME_LAST_USED = "last_used";
+        /** Type of the column for the time of the last launch. */
+        private static final String COLUMN_TYPE_LAST_USED = "INTEGER DEFAULT 0";
+    }
+
+    /**
+     * Class for defining the table Component, which gives every component a small id.
+     */
+    public static class Component implements BaseColumns {
+        /** Table name. */
+        public static final String TABLE_NAME = "Component";
+        /** Name of the unique index on package name and class name. */
+        private static final String INDEX_NAME_NAME = "Component_name";
+        /** Type of the column for the id. */
+        private static final String COLUMN_TYPE_ID = "INTEGER PRIMARY KEY";
+        /** Name of the column for package name. */
+        public static final String COLUMN_NAME_PACKAGE_NAME = "packagename";
+        /** Type of the column for package name. */
+        private static final String COLUMN_TYPE_PACKAGE_NAME = "TEXT NOT NULL";
+        /** Name of the column for class name. */
+        public static final String COLUMN_NAME_CLASS_NAME = "classname";
+        /** Type of the column for class name. */
+        private static final String COLUMN_TYPE_CLASS_NAME = "TEXT NOT NULL";
+    }
+
+    /**
+     * Class for defining the table Journal, which holds in a single row the sequence up to
+     * which the launches of the journal of the {@link UsageRecorder} have been written.
+     */
+    public static class Journal implements BaseColumns {
+        /** Table name. */
+        public static final String TABLE_NAME = "Journal";
+        /** The id of the only row. */
+        private static final int ROW_ID = 1;
+        /** Type of the column for the id. */
+        private static final String COLUMN_TYPE_ID = "INTEGER PRIMARY KEY";
+        /** Name of the column for the sequence. */
+        public static final String COLUMN_NAME_SEQUENCE = "sequence";
+        /** Type of the column for the sequence. */
+        private static final String COLUMN_TYPE_SEQUENCE = "INTEGER NOT NULL";
     }
 }
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2018  Clemens Bartz
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.clemensbartz.android.launcher.db;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry giving every component a small, stable id. The ids are the keys of the icon
+ * cache, the dock ranking and the usage table, so these never build key strings.
+ * <p/>
+ * All components are held in memory. New components get the next free id at once, their
+ * rows are written behind on the {@link DatabaseWriter}. Every write that refers to an id
+ * calls {@link #writePending(SQLiteDatabase)} in its transaction first, so a component is
+ * always written together with the rows that refer to it.
+ *
+ * @author Clemens Bartz
+ * @since 1.4
+ */
+public final class ComponentRegistry {
+
+    /** The id for no component. Ids of components start at 1. */
+    public static final int NO_ID = 0;
+
+    /** The initial capacity of the arrays. */
+    private static final int INITIAL_CAPACITY = 256;
+
+    /** The query for all components. */
+    private static final String SELECT_COMPONENTS =
+            "SELECT "
+            + ApplicationUsageModel.Component._ID
+                    + ", "
+            + ApplicationUsageModel.Component.COLUMN_NAME_PACKAGE_NAME
+                    + ", "
+            + ApplicationUsageModel.Component.COLUMN_NAME_CLASS_NAME
+            + " FROM "
+            + ApplicationUsageModel.Component.TABLE_NAME;
+
+    /** The instance. */
+    private static ComponentRegistry instance;
+
+    /** Database helper. */
+    private final SQLiteOpenHelper dbHelper;
+    /** The writer for the database. */
+    private final DatabaseWriter writer;
+    /** The ids by package name and class name. */
+    private final Map<String, Map<String, Integer>> ids = new HashMap<>();
+    /** The package names by id. */
+    private String[] packageNames = new String[INITIAL_CAPACITY];
+    /** The class names by id. */
+    private String[] classNames = new String[INITIAL_CAPACITY];
+    /** The next free id. */
+    private int nextId = NO_ID + 1;
+    /** The first id that has not been written yet. */
+    private int firstPendingId = NO_ID + 1;
+    /** Flag, if the components have already been loaded into memory. */
+    private boolean loaded = false;
+    /** Flag, if a write of pending components has already been queued. */
+    private boolean writeQueued = false;
+
+    /** Write of the pending components on the writer thread. */
+    private final DatabaseWriter.Write pendingWrite = new DatabaseWriter.Write() {
+        @Override
+        public void write(final SQLiteDatabase db) {
+            synchronized (ComponentRegistry.this) {
+                writeQueued = false;
+            }
+
+            int last = NO_ID;
+            db.beginTransaction();
+            try {
+                last = writePending(db);
+                db.setTransactionSuccessful();
+            } catch (final SQLiteException e) {
+                // The components are written again with the next write
+                last = NO_ID;
+            } finally {
+                db.endTransaction();
+            }
+
+            // Only a committed transaction of its own tells that the components are written
+            synchronized (ComponentRegistry.this) {
+                firstPendingId = Math.max(firstPendingId, last);
+            }
+        }
+    };
+
+    /**
+     * @param context the context to get the database from
+     * @return the instance of the registry
+     */
+    public static synchronized ComponentRegistry getInstance(final Context context) {
+        if (instance == null) {
+            instance = new ComponentRegistry(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    /**
+     * Create a new registry. The components are loaded with the first lookup.
+     * @param context the application context
+     */
+    private ComponentRegistry(final Context context) {
+        dbHelper = ApplicationUsageDbHelper.getInstance(context);
+        writer = DatabaseWriter.getInstance(context);
+    }
+
+    /**
+     * Get the id of a component and register it, if it does not have one yet. A lookup
+     * does not create any objects.
+     * <p/>
+     * This method has to be called from a background thread.
+     * @param packageName the package name
+     * @param className the class name
+     * @return the id
+     */
+    public synchronized int getId(final String packageName, final String className) {
+        load();
+
+        Map<String, Integer> classIds = ids.get(packageName);
+        if (classIds != null) {
+            final Integer id = classIds.get(className);
+
+            if (id != null) {
+                return id;
+            }
+        } else {
+            classIds = new HashMap<>(1);
+            ids.put(packageName.intern(), classIds);
+        }
+
+        final int id = nextId;
+        nextId = nextId + 1;
+        put(id, packageName, className, classIds);
+
+        if (!writeQueued) {
+            writeQueued = true;
+            writer.submit(pendingWrite);
+        }
+
+        return id;
+    }
+
+    /**
+     * @param id the id
+     * @return the package name of the component or <code>null</code>, if the id is unknown
+     */
+    public synchronized String getPackageName(final int id) {
+        if (id <= NO_ID || id >= nextId) {
+            return null;
+        }
+
+        return packageNames[id];
+    }
+
+    /**
+     * @param id the id
+     * @return the class name of the component or <code>null</code>, if the id is unknown
+     */
+    public synchronized String getClassName(final int id) {
+        if (id <= NO_ID || id >= nextId) {
+            return null;
+        }
+
+        return classNames[id];
+    }
+
+    /**
+     * Write the components that have been registered but not written yet. Components that
+     * have already been written are ignored.
+     * <p/>
+     * This method is called on the writer thread, inside of the transaction of the caller.
+     * @param db the writable database
+     * @return the id after the last component that has been written
+     */
+    public int writePending(final SQLiteDatabase db) {
+        final int first;
+        final int last;
+        final String[] pendingPackageNames;
+        final String[] pendingClassNames;
+
+        synchronized (this) {
+            if (firstPendingId == nextId) {
+                return nextId;
+            }
+
+            first = firstPendingId;
+            last = nextId;
+            pendingPackageNames = Arrays.copyOfRange(packageNames, first, last);
+            pendingClassNames = Arrays.copyOfRange(classNames, first, last);
+        }
+
+        final SQLiteStatement statement = db.compileStatement(ApplicationUsageModel.INSERT_COMPONENT);
+        try {
+            for (int id = first; id < last; id++) {
+                statement.bindLong(1, id);
+                statement.bindString(2, pendingPackageNames[id - first]);
+                statement.bindString(3, pendingClassNames[id - first]);
+                statement.execute();
+            }
+        } finally {
+            statement.close();
+        }
+
+        return last;
+    }
+
+    /**
+     * Load all components into memory. Subsequent calls do nothing. Ids are only handed out
+     * after loading, so only ids read from the database need this before a lookup by id.
+     * <p/>
+     * This method has to be called from a background thread.
+     */
+    public synchronized void load() {
+        if (loaded) {
+            return;
+        }
+
+        final SQLiteDatabase db = dbHelper.getReadableDatabase();
+
+        Cursor c = null;
+        try {
+            c = db.rawQuery(SELECT_COMPONENTS, null);
+
+            if (c != null) {
+                for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+                    final int id = c.getInt(0);
+                    final String packageName = c.getString(1).intern();
+                    final String className = c.getString(2);
+
+                    Map<String, Integer> classIds = ids.get(packageName);
+                    if (classIds == null) {
+                        classIds = new HashMap<>(1);
+                        ids.put(packageName, classIds);
+                    }
+
+                    put(id, packageName, className, classIds);
+                    nextId = Math.max(nextId, id + 1);
+                }
+            }
+
+            firstPendingId = nextId;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+
+        loaded = true;
+    }
+
+    /**
+     * Put a component into memory.
+     * <p/>
+     * The caller has to hold the lock on this registry.
+     * @param id the id
+     * @param packageName the interned package name
+     * @param className the class name
+     * @param classIds the ids of the package
+     */
+    private void put(final int id, final String packageName, final String className, final Map<String, Integer> classIds) {
+        if (id >= packageNames.length) {
+            final int capacity = Math.max(id + 1, 2 * packageNames.length);
+            packageNames = Arrays.copyOf(packageNames, capacity);
+            classNames = Arrays.copyOf(classNames, capacity);
+        }
+
+        packageNames[id] = packageName;
+        classNames[id] = className;
+        classIds.put(className, id);
+    }
+}
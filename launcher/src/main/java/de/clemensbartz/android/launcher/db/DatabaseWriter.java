@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2018  Clemens Bartz
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.clemensbartz.android.launcher.db;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Process;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Single writer for the application usage database. All writes run one after another on one
+ * background thread, so they never wait for each other's locks. With write-ahead logging,
+ * reads on other threads are not blocked by them.
+ *
+ * @author Clemens Bartz
+ * @since 1.4
+ */
+public final class DatabaseWriter {
+
+    /** The name of the writer thread. */
+    private static final String THREAD_NAME = "ApplicationUsageWriter";
+
+    /** The instance. */
+    private static DatabaseWriter instance;
+
+    /** The database helper. */
+    private final SQLiteOpenHelper dbHelper;
+    /** The executor running the writes. */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, THREAD_NAME);
+        }
+    });
+
+    /**
+     * @param context the context to get the database from
+     * @return the instance of the writer
+     */
+    public static synchronized DatabaseWriter getInstance(final Context context) {
+        if (instance == null) {
+            instance = new DatabaseWriter(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    /**
+     * Create a new writer.
+     * @param context the application context
+     */
+    private DatabaseWriter(final Context context) {
+        dbHelper = ApplicationUsageDbHelper.getInstance(context);
+    }
+
+    /**
+     * Queue a write. Writes are run in the order they have been queued.
+     * @param write the write
+     * @return the future of the write
+     */
+    public Future<?> submit(final Write write) {
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write.write(dbHelper.getWritableDatabase());
+                } catch (final SQLiteException e) {
+                    // The write is lost, but the in-memory state stays valid
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue a write and wait until it has been run.
+     * @param write the write
+     */
+    public void submitAndWait(final Write write) {
+        final Future<?> future = submit(write);
+
+        try {
+            future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException e) {
+            // The write has failed, nothing to wait for
+        }
+    }
+
+    /**
+     * A write to the database.
+     */
+    public interface Write {
+        /**
+         * Run the write. This is called on the writer thread.
+         * @param db the writable database
+         */
+        void write(SQLiteDatabase db);
+    }
+}
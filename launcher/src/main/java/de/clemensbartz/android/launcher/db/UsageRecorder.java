@@ -0,0 +1,710 @@
+/*
+ * Copyright (C) 2018  Clemens Bartz
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.clemensbartz.android.launcher.db;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-behind recorder for application launches. Launches are only counted in memory and
+ * written to the database in batches, using one transaction and pre-compiled statements.
+ * <p/>
+ * A batch is written after {@link #FLUSH_DELAY} milliseconds, when {@link #FLUSH_THRESHOLD}
+ * components are pending or when {@link #persist()} is called. Every launch is also added to a
+ * journal in the shared preferences, so it survives the process being killed. The
+ * journal is keyed by component name, because the ids of its components might not have been
+ * written, when the process has been killed.
+ * <p/>
+ * Every launch gets a sequence number, and the journal keeps the highest sequence number of
+ * the launches it counts. A batch writes the highest sequence number it contains to the
+ * database in the same transaction as the launches, so launches of the journal that have
+ * already been written are skipped on replay, even if the journal could not be rewritten
+ * before the process has been killed.
+ *
+ * @author Clemens Bartz
+ * @since 1.4
+ */
+public final class UsageRecorder {
+
+    /** The delay in milliseconds after which pending launches will be written. */
+    private static final long FLUSH_DELAY = 30000;
+    /** The number of pending components after which they will be written immediately. */
+    private static final int FLUSH_THRESHOLD = 16;
+    /** The name of the shared preferences holding the journal. */
+    private static final String JOURNAL_NAME = "UsageJournal";
+
+    /** The separator of the values in the journal. */
+    private static final String JOURNAL_SEPARATOR = ";";
+    /** The number of values of a journal entry before its parts, score and last used time. */
+    private static final int JOURNAL_HEADER_VALUES = 2;
+    /** The number of values of every part of a journal entry, count and sequence number. */
+    private static final int JOURNAL_PART_VALUES = 2;
+    /** The key of the sequence number reserved for this and earlier processes in the journal. */
+    private static final String SEQUENCE_KEY = "sequence";
+    /** The number of sequence numbers to reserve at once. */
+    private static final long SEQUENCE_RESERVE = 1024;
+    /** Sequence number if there is no or no known sequence number. */
+    private static final long NO_SEQUENCE = -1;
+
+    /**
+     * Increase the usage of a component by a delta, stopping at the maximum, and set score
+     * and last used time, if they are not <code>null</code>.
+     */
+    private static final String ADD_USAGE =
+            "UPDATE "
+            + ApplicationUsageModel.ApplicationUsage.TABLE_NAME
+            + " SET "
+            + ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_USAGE
+                    + "=MIN("
+            + ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_USAGE
+                    + "+?1, " + Integer.MAX_VALUE + "), "
+            + ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_SCORE
+                    + "=COALESCE(?2, "
+            + ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_SCORE
+                    + "), "
+            + ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_LAST_USED
+                    + "=COALESCE(?3, "
+            + ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_LAST_USED
+                    + ") WHERE "
+            + ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_COMPONENT
+                    + "=?4";
+
+    /** The instance. */
+    private static UsageRecorder instance;
+
+    /** The writer for the database. */
+    private final DatabaseWriter writer;
+    /** The registry of the components. */
+    private final ComponentRegistry registry;
+    /** The journal of launches that are not written to the database yet. */
+    private final SharedPreferences journal;
+    /** The handler for the delayed flush. */
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    /** The pending launches, keyed by component id. */
+    private final SparseArray<PendingUsage> pending = new SparseArray<>();
+    /** The launches of the journal of a previous process, whose ids are not known yet. */
+    private final List<PendingUsage> replayed = new ArrayList<>(0);
+    /** The launches currently being written, or <code>null</code>. */
+    private SparseArray<PendingUsage> inFlight;
+    /** The sequence number of the next launch. */
+    private long nextSequence;
+    /**
+     * The sequence number up to which launches may be written to the database. It is stored
+     * in the journal before, so a later process will never hand out these numbers again.
+     */
+    private long reservedSequence;
+    /** Flag, if the journal of a previous process has been loaded. */
+    private boolean journalLoaded = false;
+    /** Flag, if the journal contains entries. */
+    private boolean journalWritten = false;
+    /** Flag, if a delayed flush has already been scheduled. */
+    private boolean flushScheduled = false;
+    /** Flag, if a flush has already been queued on the writer thread. */
+    private boolean flushQueued = false;
+
+    /** The database the statements have been compiled for. */
+    private SQLiteDatabase database;
+    /** Compiled statement for inserting an empty row. */
+    private SQLiteStatement insertStatement;
+    /** Compiled statement for adding to the usage. */
+    private SQLiteStatement addUsageStatement;
+    /** Compiled statement for setting the sequence number of the written launches. */
+    private SQLiteStatement sequenceStatement;
+
+    /** Load of the journal on the writer thread. */
+    private final DatabaseWriter.Write loadJournalWrite = new DatabaseWriter.Write() {
+        @Override
+        public void write(final SQLiteDatabase db) {
+            loadJournal();
+        }
+    };
+    /** Write of the pending launches on the writer thread. */
+    private final DatabaseWriter.Write flushWrite = new DatabaseWriter.Write() {
+        @Override
+        public void write(final SQLiteDatabase db) {
+            flush(db);
+        }
+    };
+    /** Runnable for queueing the flush after the delay. */
+    private final Runnable scheduleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (pending) {
+                scheduleFlush(0);
+            }
+        }
+    };
+
+    /**
+     * @param context the context to get the database from
+     * @return the instance of the recorder
+     */
+    public static synchronized UsageRecorder getInstance(final Context context) {
+        if (instance == null) {
+            instance = new UsageRecorder(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    /**
+     * Create a new recorder. The journal of a previous process is replayed on the writer
+     * thread.
+     * @param context the application context
+     */
+    private UsageRecorder(final Context context) {
+        writer = DatabaseWriter.getInstance(context);
+        registry = ComponentRegistry.getInstance(context);
+        journal = context.getSharedPreferences(JOURNAL_NAME, Context.MODE_PRIVATE);
+
+        // Reading the journal blocks until the file has been read
+        writer.submit(loadJournalWrite);
+    }
+
+    /**
+     * Load the journal of a previous process. Launches that have been recorded in the
+     * meantime get their sequence numbers now.
+     * <p/>
+     * This method is called on the writer thread, before any flush.
+     */
+    private void loadJournal() {
+        // The ids are looked up with the next flush
+        final List<PendingUsage> entries = new ArrayList<>(0);
+        for (Map.Entry<String, ?> entry : journal.getAll().entrySet()) {
+            final ComponentName componentName = ComponentName.unflattenFromString(entry.getKey());
+
+            if (componentName != null && entry.getValue() instanceof String) {
+                PendingUsage.readJournal(componentName, (String) entry.getValue(), entries);
+            }
+        }
+        final long reserved = journal.getLong(SEQUENCE_KEY, 0);
+
+        synchronized (pending) {
+            // Continue after every sequence number that might be in the database or the journal
+            reservedSequence = reserved;
+            long lastSequence = reserved;
+            for (int i = 0, entriesSize = entries.size(); i < entriesSize; i++) {
+                lastSequence = Math.max(lastSequence, entries.get(i).sequence);
+            }
+            nextSequence = lastSequence + 1;
+
+            for (int i = 0, pendingSize = pending.size(); i < pendingSize; i++) {
+                pending.valueAt(i).sequence = nextSequence++;
+            }
+
+            replayed.addAll(entries);
+            journalLoaded = true;
+            journalWritten = !replayed.isEmpty();
+
+            if (pending.size() > 0) {
+                writeJournal();
+            }
+            if (!isEmpty()) {
+                scheduleFlush(0);
+            }
+        }
+    }
+
+    /**
+     * Count one launch of a component. The launch is added to the journal right away, so it
+     * does not depend on {@link #persist()} being called after it. The journal is written
+     * with {@link SharedPreferences.Editor#apply()}, so this method returns at once.
+     * @param id the id of the component
+     * @param packageName the package name
+     * @param className the class name
+     * @param score the new score of the component
+     * @param lastUsed the time of the launch
+     */
+    public void record(final int id, final String packageName, final String className, final double score, final long lastUsed) {
+        synchronized (pending) {
+            PendingUsage pendingUsage = pending.get(id);
+            if (pendingUsage == null) {
+                pendingUsage = new PendingUsage(id, packageName, className);
+                pending.put(id, pendingUsage);
+            }
+            pendingUsage.count = pendingUsage.count + 1;
+            if (journalLoaded) {
+                pendingUsage.sequence = nextSequence++;
+            }
+            pendingUsage.score = score;
+            pendingUsage.lastUsed = lastUsed;
+            pendingUsage.hasScore = true;
+
+            // Before the load, the journal is written when it has been loaded
+            if (journalLoaded) {
+                writeJournal();
+            }
+
+            if (pending.size() + replayed.size() >= FLUSH_THRESHOLD) {
+                scheduleFlush(0);
+            } else {
+                scheduleFlush(FLUSH_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Write all pending launches to the journal and start writing them to the database.
+     * <p/>
+     * Call this from <code>onStop</code>. The journal is written with
+     * {@link SharedPreferences.Editor#apply()}, which is finished before the activity is
+     * reported as stopped. Until the journal of a previous process has been loaded, the
+     * launches are only written to the database, which happens after the load.
+     */
+    public void persist() {
+        synchronized (pending) {
+            if (isEmpty()) {
+                return;
+            }
+
+            if (journalLoaded) {
+                writeJournal();
+            }
+            scheduleFlush(0);
+        }
+    }
+
+    /**
+     * Write all pending launches to the database and wait until they are written.
+     * <p/>
+     * This method has to be called from a background thread.
+     */
+    public void flush() {
+        synchronized (pending) {
+            if (isEmpty()) {
+                return;
+            }
+        }
+
+        writer.submitAndWait(flushWrite);
+    }
+
+    /**
+     * Write all pending launches to the database in one transaction.
+     * <p/>
+     * This method is called on the writer thread.
+     * @param db the writable database
+     */
+    private void flush(final SQLiteDatabase db) {
+        final boolean hasReplayed;
+        synchronized (pending) {
+            hasReplayed = !replayed.isEmpty();
+        }
+
+        long writtenSequence = NO_SEQUENCE;
+        if (hasReplayed) {
+            writtenSequence = readWrittenSequence(db);
+        }
+
+        final long sequence;
+        final long previousReservedSequence;
+        final long newReservedSequence;
+        synchronized (pending) {
+            flushScheduled = false;
+            flushQueued = false;
+            handler.removeCallbacks(scheduleRunnable);
+
+            if (hasReplayed) {
+                if (writtenSequence == NO_SEQUENCE) {
+                    // Without the written sequence, replayed launches could be dropped or counted twice
+                    scheduleFlush(FLUSH_DELAY);
+                    return;
+                }
+
+                resolveReplayed(writtenSequence);
+            }
+
+            if (pending.size() == 0) {
+                // All launches of the journal might have been written already
+                if (journalWritten) {
+                    writeJournal();
+                }
+                return;
+            }
+
+            inFlight = pending.clone();
+            pending.clear();
+
+            // Only launches of this batch may be marked as written
+            long highestSequence = NO_SEQUENCE;
+            for (int i = 0, inFlightSize = inFlight.size(); i < inFlightSize; i++) {
+                highestSequence = Math.max(highestSequence, inFlight.valueAt(i).sequence);
+            }
+            sequence = highestSequence;
+            previousReservedSequence = reservedSequence;
+            if (sequence > reservedSequence) {
+                reservedSequence = sequence + SEQUENCE_RESERVE;
+            }
+            newReservedSequence = reservedSequence;
+        }
+
+        boolean success = false;
+        try {
+            // The reservation has to be on disk before the sequence number is in the database
+            if (newReservedSequence != previousReservedSequence
+                    && !journal.edit().putLong(SEQUENCE_KEY, newReservedSequence).commit()) {
+                throw new SQLiteException("Could not reserve sequence numbers");
+            }
+
+            compileStatements(db);
+
+            db.beginTransaction();
+            try {
+                registry.writePending(db);
+
+                for (int i = 0, inFlightSize = inFlight.size(); i < inFlightSize; i++) {
+                    final PendingUsage pendingUsage = inFlight.valueAt(i);
+
+                    insertStatement.bindLong(1, pendingUsage.id);
+                    insertStatement.execute();
+
+                    addUsageStatement.bindLong(1, pendingUsage.count);
+                    if (pendingUsage.hasScore) {
+                        addUsageStatement.bindDouble(2, pendingUsage.score);
+                        addUsageStatement.bindLong(3, pendingUsage.lastUsed);
+                    } else {
+                        addUsageStatement.bindNull(2);
+                        addUsageStatement.bindNull(3);
+                    }
+                    addUsageStatement.bindLong(4, pendingUsage.id);
+                    addUsageStatement.executeUpdateDelete();
+                }
+
+                // Mark the launches of the journal as written together with the launches
+                sequenceStatement.bindLong(1, sequence);
+                sequenceStatement.execute();
+
+                db.setTransactionSuccessful();
+                success = true;
+            } finally {
+                db.endTransaction();
+            }
+        } catch (final SQLiteException e) {
+            success = false;
+        } finally {
+            synchronized (pending) {
+                if (!success) {
+                    // Put the launches back and try again later
+                    for (int i = 0, inFlightSize = inFlight.size(); i < inFlightSize; i++) {
+                        merge(inFlight.valueAt(i));
+                    }
+
+                    // Reserve again with the next batch
+                    if (reservedSequence == newReservedSequence) {
+                        reservedSequence = previousReservedSequence;
+                    }
+                }
+
+                inFlight = null;
+
+                if (journalWritten) {
+                    writeJournal();
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace the journal with the launches that are not in the database yet.
+     * <p/>
+     * The caller has to hold the lock on {@link #pending}.
+     */
+    private void writeJournal() {
+        // Launches of a component in different batches are kept apart by their sequence numbers
+        final Map<String, String> values = new HashMap<>(pending.size() + replayed.size());
+
+        for (int i = 0, pendingSize = pending.size(); i < pendingSize; i++) {
+            pending.valueAt(i).toJournal(values);
+        }
+        if (inFlight != null) {
+            for (int i = 0, inFlightSize = inFlight.size(); i < inFlightSize; i++) {
+                inFlight.valueAt(i).toJournal(values);
+            }
+        }
+        for (int i = 0, replayedSize = replayed.size(); i < replayedSize; i++) {
+            replayed.get(i).toJournal(values);
+        }
+
+        final SharedPreferences.Editor editor = journal.edit().clear();
+        editor.putLong(SEQUENCE_KEY, reservedSequence);
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            editor.putString(entry.getKey(), entry.getValue());
+        }
+        editor.apply();
+
+        journalWritten = !isEmpty();
+    }
+
+    /**
+     * Read the sequence number up to which launches have been written to the database.
+     * <p/>
+     * This method is called on the writer thread.
+     * @param db the writable database
+     * @return the sequence number, 0 if nothing has been written yet, or {@link #NO_SEQUENCE}
+     * if it could not be read
+     */
+    private long readWrittenSequence(final SQLiteDatabase db) {
+        Cursor c = null;
+
+        try {
+            c = db.rawQuery(ApplicationUsageModel.SELECT_JOURNAL_SEQUENCE, null);
+            if (c == null) {
+                return NO_SEQUENCE;
+            }
+
+            if (c.moveToFirst()) {
+                return c.getLong(0);
+            }
+
+            return 0;
+        } catch (final SQLiteException e) {
+            return NO_SEQUENCE;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * Look up the ids of the launches of the journal of a previous process and add them to
+     * the pending launches as older launches. Launches that have already been written are
+     * dropped.
+     * <p/>
+     * This method is called on the writer thread. The caller has to hold the lock on
+     * {@link #pending}.
+     * @param writtenSequence the sequence number up to which launches have been written
+     */
+    private void resolveReplayed(final long writtenSequence) {
+        for (int i = 0, replayedSize = replayed.size(); i < replayedSize; i++) {
+            final PendingUsage pendingUsage = replayed.get(i);
+
+            if (pendingUsage.sequence > writtenSequence) {
+                merge(pendingUsage.withId(registry.getId(pendingUsage.packageName, pendingUsage.className)));
+            }
+        }
+
+        replayed.clear();
+    }
+
+    /**
+     * Add older launches of a component to the pending launches.
+     * <p/>
+     * The caller has to hold the lock on {@link #pending}.
+     * @param older the older launches
+     */
+    private void merge(final PendingUsage older) {
+        final PendingUsage newer = pending.get(older.id);
+
+        if (newer != null) {
+            newer.mergeOlder(older);
+        } else {
+            pending.put(older.id, older);
+        }
+    }
+
+    /**
+     * The caller has to hold the lock on {@link #pending}.
+     * @return if there are no launches that have not been written yet
+     */
+    private boolean isEmpty() {
+        return pending.size() == 0 && replayed.isEmpty() && inFlight == null;
+    }
+
+    /**
+     * Schedule a flush, unless one has already been scheduled. A flush without delay
+     * replaces an already scheduled one.
+     * <p/>
+     * The caller has to hold the lock on {@link #pending}.
+     * @param delay the delay in milliseconds
+     */
+    private void scheduleFlush(final long delay) {
+        if (flushQueued) {
+            return;
+        }
+
+        if (delay == 0) {
+            handler.removeCallbacks(scheduleRunnable);
+            flushScheduled = false;
+            flushQueued = true;
+            writer.submit(flushWrite);
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            handler.postDelayed(scheduleRunnable, delay);
+        }
+    }
+
+    /**
+     * Compile the statements for the database, if necessary.
+     * @param db the writable database
+     */
+    private void compileStatements(final SQLiteDatabase db) {
+        if (db != database || insertStatement == null || addUsageStatement == null || sequenceStatement == null) {
+            if (insertStatement != null) {
+                insertStatement.close();
+            }
+            if (addUsageStatement != null) {
+                addUsageStatement.close();
+            }
+            if (sequenceStatement != null) {
+                sequenceStatement.close();
+            }
+
+            insertStatement = db.compileStatement(ApplicationUsageModel.INSERT_OR_IGNORE);
+            addUsageStatement = db.compileStatement(ADD_USAGE);
+            sequenceStatement = db.compileStatement(ApplicationUsageModel.REPLACE_JOURNAL_SEQUENCE);
+            database = db;
+        }
+    }
+
+    /**
+     * Launches of one component which are not written yet.
+     */
+    private static final class PendingUsage {
+        /** The id of the component. */
+        private final int id;
+        /** The package name. */
+        private final String packageName;
+        /** The class name. */
+        private final String className;
+        /** The number of launches. */
+        private int count;
+        /** The highest sequence number of the launches. */
+        private long sequence;
+        /** The score after the last launch. */
+        private double score;
+        /** The time of the last launch. */
+        private long lastUsed;
+        /** Flag, if score and last used time are known. */
+        private boolean hasScore;
+
+        /**
+         * Create a new pending usage.
+         * @param id the id of the component
+         * @param packageName the package name
+         * @param className the class name
+         */
+        private PendingUsage(final int id, final String packageName, final String className) {
+            this.id = id;
+            this.packageName = packageName;
+            this.className = className;
+        }
+
+        /**
+         * @param newId the id of the component
+         * @return a copy of this entry with the id
+         */
+        private PendingUsage withId(final int newId) {
+            final PendingUsage copy = new PendingUsage(newId, packageName, className);
+            copy.count = count;
+            copy.sequence = sequence;
+            copy.score = score;
+            copy.lastUsed = lastUsed;
+            copy.hasScore = hasScore;
+
+            return copy;
+        }
+
+        /**
+         * @return the key of this entry in the journal, the flattened component name
+         */
+        private String getJournalKey() {
+            return new ComponentName(packageName, className).flattenToString();
+        }
+
+        /**
+         * Add the launches of an older entry for the same component.
+         * @param older the older entry
+         */
+        private void mergeOlder(final PendingUsage older) {
+            count = count + older.count;
+            sequence = Math.max(sequence, older.sequence);
+
+            if (!hasScore) {
+                score = older.score;
+                lastUsed = older.lastUsed;
+                hasScore = older.hasScore;
+            }
+        }
+
+        /**
+         * Add this entry to the journal values. A journal value starts with score and last
+         * used time of the first entry for the component, followed by count and sequence
+         * number of every entry.
+         * @param values the journal values, keyed by journal key
+         */
+        private void toJournal(final Map<String, String> values) {
+            final String key = getJournalKey();
+            final String part = count + JOURNAL_SEPARATOR + sequence;
+            final String value = values.get(key);
+
+            if (value == null) {
+                values.put(key, score + JOURNAL_SEPARATOR + lastUsed + JOURNAL_SEPARATOR + part);
+            } else {
+                values.put(key, value + JOURNAL_SEPARATOR + part);
+            }
+        }
+
+        /**
+         * Read the entries of a component from a journal value.
+         * @param componentName the component
+         * @param value the journal value
+         * @param entries the list to add the entries to, if the value could be read
+         */
+        private static void readJournal(final ComponentName componentName, final String value, final List<PendingUsage> entries) {
+            final String[] values = value.split(JOURNAL_SEPARATOR);
+            if (values.length <= JOURNAL_HEADER_VALUES
+                    || (values.length - JOURNAL_HEADER_VALUES) % JOURNAL_PART_VALUES != 0) {
+                return;
+            }
+
+            final List<PendingUsage> parts = new ArrayList<>(values.length / JOURNAL_PART_VALUES);
+            try {
+                final double score = Double.parseDouble(values[0]);
+                final long lastUsed = Long.parseLong(values[1]);
+
+                for (int i = JOURNAL_HEADER_VALUES; i < values.length; i += JOURNAL_PART_VALUES) {
+                    final PendingUsage part = new PendingUsage(ComponentRegistry.NO_ID, componentName.getPackageName(), componentName.getClassName());
+                    part.count = Integer.parseInt(values[i]);
+                    part.sequence = Long.parseLong(values[i + 1]);
+                    part.score = score;
+                    part.lastUsed = lastUsed;
+                    part.hasScore = true;
+                    parts.add(part);
+                }
+            } catch (final NumberFormatException e) {
+                return;
+            }
+
+            entries.addAll(parts);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2018  Clemens Bartz
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.clemensbartz.android.launcher.models;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Compact, immutable catalog of the applications of the drawer, sorted by label.
+ * <p/>
+ * The entries are kept in parallel arrays instead of one object per application: component
+ * ids, interned package names, class names, plain labels and sort keys. Icons are not
+ * part of the catalog, they are looked up in the icon cache by component id. The disabled and
+ * sticky flags change with every toggle, so they are not part of the catalog either, they are
+ * read from the {@link HomeModel}. {@link ApplicationModel}s are only created on demand with
+ * {@link #get(int)}.
+ *
+ * @author Clemens Bartz
+ * @since 1.4
+ */
+public final class AppCatalog {
+
+    /** The empty catalog. */
+    public static final AppCatalog EMPTY = new Builder(0).build();
+
+    /** The comparator for sorting applications by label. */
+    public static final Comparator<ApplicationModel> SORT_KEY_COMPARATOR = new SortKeyComparator();
+
+    /** Mask for the unsigned value of a byte. */
+    private static final int UNSIGNED_MASK = 0xff;
+    /** The estimated size of the columns of one entry in bytes: an id and four references. */
+    private static final int ENTRY_BYTES = 20;
+    /** The size of a char in bytes. */
+    private static final int CHAR_BYTES = 2;
+
+    /** The ids of the components. */
+    private final int[] componentIds;
+    /** The package names. */
+    private final String[] packageNames;
+    /** The class names. */
+    private final String[] classNames;
+    /** The labels. */
+    private final String[] labels;
+    /** The sort keys. */
+    private final byte[][] sortKeys;
+
+    /**
+     * Create a new catalog from a builder.
+     * @param builder the builder
+     */
+    private AppCatalog(final Builder builder) {
+        componentIds = Arrays.copyOf(builder.componentIds, builder.size);
+        packageNames = Arrays.copyOf(builder.packageNames, builder.size);
+        classNames = Arrays.copyOf(builder.classNames, builder.size);
+        labels = Arrays.copyOf(builder.labels, builder.size);
+        sortKeys = Arrays.copyOf(builder.sortKeys, builder.size);
+    }
+
+    /**
+     * @return the number of applications
+     */
+    public int size() {
+        return packageNames.length;
+    }
+
+    /**
+     * Estimate the memory held by the catalog. Package names are shared between entries and
+     * not counted.
+     * @return the estimated size in bytes
+     */
+    public int estimateByteCount() {
+        int byteCount = size() * ENTRY_BYTES;
+
+        for (int i = 0, size = size(); i < size; i++) {
+            byteCount = byteCount + CHAR_BYTES * (labels[i].length() + classNames[i].length()) + sortKeys[i].length;
+        }
+
+        return byteCount;
+    }
+
+    /**
+     * @param index the index
+     * @return the id of the component
+     */
+    public int getComponentId(final int index) {
+        return componentIds[index];
+    }
+
+    /**
+     * @param index the index
+     * @return the package name
+     */
+    public String getPackageName(final int index) {
+        return packageNames[index];
+    }
+
+    /**
+     * @param index the index
+     * @return the class name
+     */
+    public String getClassName(final int index) {
+        return classNames[index];
+    }
+
+    /**
+     * @param index the index
+     * @return the label
+     */
+    public String getLabel(final int index) {
+        return labels[index];
+    }
+
+    /**
+     * @param index the index
+     * @return the sort key
+     */
+    public byte[] getSortKey(final int index) {
+        return sortKeys[index];
+    }
+
+    /**
+     * Create a model for an application. The model has neither an icon nor flags.
+     * @param index the index
+     * @return a new model
+     */
+    public ApplicationModel get(final int index) {
+        final ApplicationModel applicationModel = new ApplicationModel();
+        applicationModel.componentId = componentIds[index];
+        applicationModel.packageName = packageNames[index];
+        applicationModel.className = classNames[index];
+        applicationModel.label = labels[index];
+        applicationModel.sortKey = sortKeys[index];
+
+        return applicationModel;
+    }
+
+    /**
+     * Create a catalog with the applications of one package replaced. Both the catalog and
+     * the new applications are sorted, so they are merged in one pass.
+     * @param packageName the package name
+     * @param packageApplicationModels the new applications of the package
+     * @return the new catalog
+     */
+    public AppCatalog replacePackage(final String packageName, final List<ApplicationModel> packageApplicationModels) {
+        final ApplicationModel[] sorted = packageApplicationModels.toArray(new ApplicationModel[packageApplicationModels.size()]);
+        Arrays.sort(sorted, SORT_KEY_COMPARATOR);
+
+        final Builder builder = new Builder(size() + sorted.length);
+        int next = 0;
+
+        for (int i = 0, size = size(); i < size; i++) {
+            if (packageName.equals(packageNames[i])) {
+                continue;
+            }
+
+            while (next < sorted.length && compareSortKeys(sorted[next].sortKey, sortKeys[i]) < 0) {
+                builder.add(sorted[next]);
+                next++;
+            }
+
+            builder.add(componentIds[i], packageNames[i], classNames[i], labels[i], sortKeys[i]);
+        }
+
+        while (next < sorted.length) {
+            builder.add(sorted[next]);
+            next++;
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Create a catalog from applications.
+     * @param applicationModels the applications, sorted by their sort keys
+     * @return the catalog
+     */
+    public static AppCatalog of(final List<ApplicationModel> applicationModels) {
+        final Builder builder = new Builder(applicationModels.size());
+
+        for (int i = 0, applicationModelsSize = applicationModels.size(); i < applicationModelsSize; i++) {
+            builder.add(applicationModels.get(i));
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Builder for catalogs. Entries have to be added in sorted order.
+     */
+    public static final class Builder {
+
+        /** The ids of the components. */
+        private int[] componentIds;
+        /** The package names. */
+        private String[] packageNames;
+        /** The class names. */
+        private String[] classNames;
+        /** The labels. */
+        private String[] labels;
+        /** The sort keys. */
+        private byte[][] sortKeys;
+        /** The number of entries. */
+        private int size = 0;
+
+        /**
+         * Create a new builder.
+         * @param capacity the expected number of entries
+         */
+        public Builder(final int capacity) {
+            componentIds = new int[capacity];
+            packageNames = new String[capacity];
+            classNames = new String[capacity];
+            labels = new String[capacity];
+            sortKeys = new byte[capacity][];
+        }
+
+        /**
+         * Add an application.
+         * @param applicationModel the application
+         * @return this builder
+         */
+        public Builder add(final ApplicationModel applicationModel) {
+            return add(
+                    applicationModel.componentId,
+                    applicationModel.packageName,
+                    applicationModel.className,
+                    String.valueOf(applicationModel.label),
+                    applicationModel.sortKey);
+        }
+
+        /**
+         * Add an application.
+         * @param componentId the id of the component
+         * @param packageName the package name
+         * @param className the class name
+         * @param label the label
+         * @param sortKey the sort key
+         * @return this builder
+         */
+        public Builder add(
+                final int componentId,
+                final String packageName,
+                final String className,
+                final String label,
+                final byte[] sortKey) {
+
+            if (size == packageNames.length) {
+                final int capacity = Math.max(1, 2 * size);
+                componentIds = Arrays.copyOf(componentIds, capacity);
+                packageNames = Arrays.copyOf(packageNames, capacity);
+                classNames = Arrays.copyOf(classNames, capacity);
+                labels = Arrays.copyOf(labels, capacity);
+                sortKeys = Arrays.copyOf(sortKeys, capacity);
+            }
+
+            // Most packages have one launcher activity, but the drawer has many copies of its name
+            componentIds[size] = componentId;
+            packageNames[size] = packageName.intern();
+            classNames[size] = className;
+            labels[size] = label;
+            sortKeys[size] = sortKey;
+            size++;
+
+            return this;
+        }
+
+        /**
+         * @return the catalog
+         */
+        public AppCatalog build() {
+            return new AppCatalog(this);
+        }
+    }
+
+    /**
+     * Compare two sort keys. Collation keys compare like their bytes, compared as unsigned values.
+     * @param sortKey1 the first sort key
+     * @param sortKey2 the second sort key
+     * @return the result of the comparison
+     */
+    private static int compareSortKeys(final byte[] sortKey1, final byte[] sortKey2) {
+        final int length = Math.min(sortKey1.length, sortKey2.length);
+
+        for (int i = 0; i < length; i++) {
+            final int difference = (sortKey1[i] & UNSIGNED_MASK) - (sortKey2[i] & UNSIGNED_MASK);
+
+            if (difference != 0) {
+                return difference;
+            }
+        }
+
+        return sortKey1.length - sortKey2.length;
+    }
+
+    /**
+     * Comparator for the sort keys of applications. The order is the same as the order of
+     * {@link android.content.pm.ResolveInfo.DisplayNameComparator}, but the labels are not
+     * loaded again.
+     */
+    private static final class SortKeyComparator implements Comparator<ApplicationModel> {
+
+        @Override
+        public int compare(final ApplicationModel applicationModel1, final ApplicationModel applicationModel2) {
+            return compareSortKeys(applicationModel1.sortKey, applicationModel2.sortKey);
+        }
+    }
+}
@@ -30,6 +30,9 @@ public final class ApplicationModel {
     /** The localized label. */
     @SuppressWarnings("CheckStyle")
     public CharSequence label;
+    /** The key for sorting by label, the bytes of its collation key. */
+    @SuppressWarnings("CheckStyle")
+    public byte[] sortKey;
     /** The icon. */
     @SuppressWarnings("CheckStyle")
     public BitmapDrawable icon;
@@ -39,6 +42,9 @@ public final class ApplicationModel {
     /** The full class name. */
     @SuppressWarnings("CheckStyle")
     public String className;
+    /** The id of the component, see {@link de.clemensbartz.android.launcher.db.ComponentRegistry}. */
+    @SuppressWarnings("CheckStyle")
+    public int componentId;
     /** The disabled flag. */
     @SuppressWarnings("CheckStyle")
     public boolean disabled;
@@ -19,24 +19,35 @@ package de.clemensbartz.android.launcher.models;
 
 import android.app.Activity;
 import android.content.ComponentName;
-import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.graphics.drawable.BitmapDrawable;
+import android.database.sqlite.SQLiteStatement;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 import de.clemensbartz.android.launcher.caches.IconCache;
 import de.clemensbartz.android.launcher.db.ApplicationUsageDbHelper;
 import de.clemensbartz.android.launcher.db.ApplicationUsageModel;
-import de.clemensbartz.android.launcher.util.BitmapUtil;
+import de.clemensbartz.android.launcher.db.ComponentRegistry;
+import de.clemensbartz.android.launcher.db.DatabaseWriter;
+import de.clemensbartz.android.launcher.db.UsageRecorder;
+import de.clemensbartz.android.launcher.util.FrecencyUtil;
 
 /**
  * Model class for HomeActivity.
@@ -48,46 +59,77 @@ public final class HomeModel {
 
     /** The total cached number of apps. */
     public static final int NUMBER_OF_APPS = 6;
-    /** Constant for descending sorting. */
-    private static final String SPACE_DESC = " DESC";
     /** Columns of ApplicationUsage. */
     private static final String[] COLUMNS = {
-            ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_PACKAGE_NAME,
-            ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_CLASS_NAME,
+            ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_COMPONENT,
             ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_USAGE,
             ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_DISABLED,
-            ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_STICKY
+            ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_STICKY,
+            ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_SCORE,
+            ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_LAST_USED
     };
-    /** Order by sticky DESC, usage DESC, package name DESC, class name DESC constant. */
+    /** Order by sticky DESC, score DESC, which is served by the score index. */
     private static final String ORDER_BY =
             ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_STICKY
-                    + SPACE_DESC
-            + ", "
-            + ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_USAGE
-                    + SPACE_DESC
-            + ", "
-            + ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_PACKAGE_NAME
-                    + SPACE_DESC
-            + ", "
-            + ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_CLASS_NAME
-                    + SPACE_DESC;
-    /** Filter for package name and class name constant. */
+                    + " DESC, "
+            + ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_SCORE
+                    + " DESC";
+    /** Filter for the component constant. */
     private static final String SELECTION =
-            ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_PACKAGE_NAME
-                    + "=? AND "
-            + ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_CLASS_NAME
+            ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_COMPONENT
                     + "=?";
-    /** Where statement for getting only enabled applications. */
-    private static final String WHERE =
-            ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_DISABLED
-                    + "=0 AND ("
+    /** Delete the row of a component. */
+    private static final String DELETE =
+            "DELETE FROM "
+            + ApplicationUsageModel.ApplicationUsage.TABLE_NAME
+            + " WHERE "
+            + SELECTION;
+    /** Reset the usage of a component. */
+    private static final String RESET_USAGE =
+            "UPDATE "
+            + ApplicationUsageModel.ApplicationUsage.TABLE_NAME
+            + " SET "
             + ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_USAGE
-                    + ">0 OR "
+                    + "=0, "
+            + ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_SCORE
+                    + "=" + FrecencyUtil.NO_SCORE + " WHERE "
+            + SELECTION;
+    /** Toggle the sticky flag of a component. */
+    private static final String TOGGLE_STICKY =
+            "UPDATE "
+            + ApplicationUsageModel.ApplicationUsage.TABLE_NAME
+            + " SET "
             + ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_STICKY
-                    + ">0)";
+                    + "=NOT "
+            + ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_STICKY
+                    + " WHERE "
+            + SELECTION;
+    /** Toggle the disabled flag of a component. */
+    private static final String TOGGLE_DISABLED =
+            "UPDATE "
+            + ApplicationUsageModel.ApplicationUsage.TABLE_NAME
+            + " SET "
+            + ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_DISABLED
+                    + "=NOT "
+            + ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_DISABLED
+                    + " WHERE "
+            + SELECTION;
+
+    /** Rebuild the database file to give free pages back. */
+    private static final String VACUUM = "VACUUM";
+    /** Update the statistics of the query planner. */
+    private static final String ANALYZE = "ANALYZE";
+    /** The interval of the maintenance in milliseconds (one day). */
+    private static final long MAINTENANCE_INTERVAL = 24L * 60L * 60L * 1000L;
 
     /** Database helper. */
     private final SQLiteOpenHelper dbHelper;
+    /** Writer for the database. */
+    private final DatabaseWriter writer;
+    /** Recorder for application launches. */
+    private final UsageRecorder usageRecorder;
+    /** Registry of the components. */
+    private final ComponentRegistry registry;
     /** Package manager. */
     private final PackageManager pm;
 
@@ -98,8 +140,28 @@ public final class HomeModel {
     private final List<ApplicationModel> mostUsedApplications =
             new ArrayList<>(NUMBER_OF_APPS);
 
-    /** Writable SQLiteDatabase. */
-    private SQLiteDatabase writableDatabase;
+    /** In-memory copy of the usage table, keyed by component id. */
+    private final SparseArray<UsageModel> usages = new SparseArray<>();
+    /** Flag, if the usage table has already been loaded into memory. */
+    private boolean usagesLoaded = false;
+    /**
+     * The ids of the disabled components. The array is replaced and never changed, so it can
+     * be read on the main thread without the lock on {@link #usages}.
+     */
+    private volatile SparseBooleanArray disabledIds = new SparseBooleanArray(0);
+    /**
+     * The ids of the sticky components. The array is replaced and never changed, so it can
+     * be read on the main thread without the lock on {@link #usages}.
+     */
+    private volatile SparseBooleanArray stickyIds = new SparseBooleanArray(0);
+    /** Applications which may be shown in the dock, in the order of the dock. */
+    private final TreeSet<UsageModel> ranking = new TreeSet<>(new RankingComparator());
+    /** Resolved applications of the last update, keyed by component id. */
+    private final SparseArray<ApplicationModel> resolvedApplications = new SparseArray<>(NUMBER_OF_APPS);
+    /** The lock for updates of the dock, so resolving does not block the usages. */
+    private final Object updateLock = new Object();
+    /** The packages whose resolved applications are outdated. */
+    private final Set<String> invalidatedPackages = new HashSet<>();
 
     /** The instance in during application life cycle. */
     private static HomeModel instance;
@@ -109,6 +171,8 @@ public final class HomeModel {
     ///** Key for the hide overlay property. */
     //This key has been removed as of version 1.3.
     //private static final String KEY_HIDE_OVERLAY_ID = "hideOverlay";
+    /** Key for the time of the last maintenance. */
+    private static final String KEY_LAST_MAINTENANCE = "lastMaintenance";
     /** Value for the appWidgetId property. */
     private int appWidgetId = -1;
 
@@ -133,32 +197,58 @@ public final class HomeModel {
     private HomeModel(final Activity context) {
         preferences = context.getPreferences(Context.MODE_PRIVATE);
         dbHelper = ApplicationUsageDbHelper.getInstance(context);
+        writer = DatabaseWriter.getInstance(context);
+        usageRecorder = UsageRecorder.getInstance(context);
+        registry = ComponentRegistry.getInstance(context);
         pm = context.getApplicationContext().getPackageManager();
     }
 
-    /**
-     * Get a database for a mode.
-     * @return the database or a readable database for unsupported modes
-     */
-    private SQLiteDatabase getDatabase() {
-        if (writableDatabase == null || !(writableDatabase.isOpen())) {
-            writableDatabase = dbHelper.getWritableDatabase();
-        }
-
-        return writableDatabase;
-    }
-
     /**
      * Load preference values.
      * @param resources the activity this was called from
      * @param iconCache the icon cache to get the icons from
      */
     public void loadValues(final Resources resources, final IconCache iconCache) {
+        synchronized (usages) {
+            loadUsages();
+
+            // Labels and icons may have changed in the meantime
+            resolvedApplications.clear();
+        }
+
         updateApplications(resources, iconCache);
 
         appWidgetId = preferences.getInt(KEY_APPWIDGET_ID, -1);
     }
 
+    /**
+     * Forget the labels and icons of a package, so they are resolved again with the next
+     * update. This does not block, so it can be called from the main thread.
+     * @param packageName the package name
+     */
+    public void invalidate(final String packageName) {
+        synchronized (invalidatedPackages) {
+            invalidatedPackages.add(packageName);
+        }
+    }
+
+    /**
+     * Remove the resolved applications of all invalidated packages.
+     * <p/>
+     * The caller has to hold the lock on {@link #usages}.
+     */
+    private void removeInvalidatedPackages() {
+        synchronized (invalidatedPackages) {
+            for (int i = resolvedApplications.size() - 1; i >= 0; i--) {
+                if (invalidatedPackages.contains(resolvedApplications.valueAt(i).packageName)) {
+                    resolvedApplications.removeAt(i);
+                }
+            }
+
+            invalidatedPackages.clear();
+        }
+    }
+
     /**
      *
      * @return the list of most used applications
@@ -168,90 +258,142 @@ public final class HomeModel {
     }
 
     /**
-     * Update the list of applications.
+     * Update the list of applications from the in-memory ranking. Only applications that
+     * entered the top {@link #NUMBER_OF_APPS} since the last update are resolved again.
+     * <p/>
+     * The top entries are copied with the lock on {@link #usages} and resolved without it,
+     * so a slow resolve does not block launches or the drawer. Entries that cannot be
+     * resolved are skipped, but stay in the ranking, e. g. while their package is updated.
      * <p/>
      * This method has to be called from an async task.
      * @param resources the activity this was called from
      * @param iconCache the icon cache to get the icons from
      */
     public void updateApplications(final Resources resources, final IconCache iconCache) {
-        final SQLiteDatabase db = getDatabase();
-
-        mostUsedApplications.clear();
-
-        boolean success;
-
-        do {
-            success = true;
-
-            Cursor c = null;
-            try {
-                c = db.query(ApplicationUsageModel.ApplicationUsage.TABLE_NAME,
-                        COLUMNS, WHERE, null, null, null,
-                        ORDER_BY, Integer.toString(NUMBER_OF_APPS));
-
-                if (c != null) {
-                    for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
-                        String packageName;
-                        String className;
-                        boolean disabled;
-                        boolean sticky;
-                        try {
-                            packageName = c.getString(c.getColumnIndexOrThrow(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_PACKAGE_NAME));
-                            className = c.getString(c.getColumnIndexOrThrow(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_CLASS_NAME));
-                            disabled = c.getInt(c.getColumnIndexOrThrow(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_DISABLED)) > 0;
-                            sticky = c.getInt(c.getColumnIndexOrThrow(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_STICKY)) > 0;
-                        } catch (IllegalArgumentException e) {
-                            continue;
-                        }
-                        try {
-                            final ComponentName componentName = new ComponentName(packageName, className);
-                            final ActivityInfo info = pm.getActivityInfo(componentName, 0);
-                            if (!info.enabled) {
-                                delete(packageName, className);
-                            }
-                            final ApplicationModel applicationModel = new ApplicationModel();
-                            applicationModel.packageName = packageName;
-                            applicationModel.className = className;
-                            applicationModel.disabled = disabled;
-                            applicationModel.sticky = sticky;
-
-                            // Delete null-loaded values
-                            if (packageName == null || className == null) {
-                                delete(packageName, className);
-                            }
-
-                            applicationModel.label = info.loadLabel(pm);
-
-                            final String key = BitmapUtil.createKey(applicationModel.packageName, applicationModel.className);
-                            applicationModel.icon = iconCache.getIcon(key);
-                            if (applicationModel.icon == null) {
-                                final BitmapDrawable bitmapDrawable = BitmapUtil.resizeDrawable(resources, info.loadIcon(pm));
-                                iconCache.create(key, bitmapDrawable);
-                                applicationModel.icon = bitmapDrawable;
-                            }
-
-                            mostUsedApplications.add(applicationModel);
-                        } catch (PackageManager.NameNotFoundException e) {
-                            /* Although Android Studio claims,
-                                these values can be null at this point!
-                             */
-                            if (packageName != null && className != null) {
-                                delete(packageName, className);
-                            }
-                            success = false;
-                            break;
-                        }
+        synchronized (updateLock) {
+            final List<ApplicationModel> applicationModels = new ArrayList<>(NUMBER_OF_APPS);
+            final SparseArray<ApplicationModel> resolved = new SparseArray<>(NUMBER_OF_APPS);
+            final List<UsageModel> candidates = new ArrayList<>(NUMBER_OF_APPS);
+            final List<ApplicationModel> previouslyResolved = new ArrayList<>(NUMBER_OF_APPS);
+            UsageModel last = null;
+
+            while (applicationModels.size() < NUMBER_OF_APPS) {
+                candidates.clear();
+                previouslyResolved.clear();
+
+                synchronized (usages) {
+                    if (last == null) {
+                        loadUsages();
+                        removeInvalidatedPackages();
+                    }
+
+                    // Continue after the last copied entry, if some entries could not be resolved
+                    final Iterator<UsageModel> iterator;
+                    if (last == null) {
+                        iterator = ranking.iterator();
+                    } else {
+                        iterator = ranking.tailSet(last, false).iterator();
+                    }
+
+                    while (iterator.hasNext() && candidates.size() < NUMBER_OF_APPS - applicationModels.size()) {
+                        final UsageModel usageModel = iterator.next();
+
+                        candidates.add(copyOf(usageModel));
+                        previouslyResolved.add(resolvedApplications.get(usageModel.id));
                     }
                 }
-            } catch (final IllegalArgumentException e) {
-                success = true;
-            } finally {
-                if (c != null) {
-                    c.close();
+
+                if (candidates.isEmpty()) {
+                    break;
                 }
+
+                for (int i = 0, candidatesSize = candidates.size(); i < candidatesSize; i++) {
+                    final UsageModel usageModel = candidates.get(i);
+
+                    // The ranking may have changed in the meantime
+                    if (resolved.get(usageModel.id) != null) {
+                        continue;
+                    }
+
+                    ApplicationModel applicationModel = previouslyResolved.get(i);
+                    if (applicationModel == null) {
+                        applicationModel = resolve(usageModel, resources, iconCache);
+                    }
+
+                    // Missing applications are removed by reconcile(), just skip them here
+                    if (applicationModel != null) {
+                        applicationModel.disabled = usageModel.disabled;
+                        applicationModel.sticky = usageModel.sticky;
+
+                        applicationModels.add(applicationModel);
+                        resolved.put(usageModel.id, applicationModel);
+                    }
+                }
+
+                last = candidates.get(candidates.size() - 1);
+            }
+
+            synchronized (usages) {
+                resolvedApplications.clear();
+                for (int i = 0, resolvedSize = resolved.size(); i < resolvedSize; i++) {
+                    resolvedApplications.put(resolved.keyAt(i), resolved.valueAt(i));
+                }
+
+                mostUsedApplications.clear();
+                mostUsedApplications.addAll(applicationModels);
             }
-        } while (!success);
+
+            final int[] dockIds = new int[resolved.size()];
+            for (int i = 0; i < dockIds.length; i++) {
+                dockIds[i] = resolved.keyAt(i);
+            }
+            iconCache.setDockIds(dockIds);
+        }
+    }
+
+    /**
+     * Copy an entry, so it can be used without the lock on {@link #usages}.
+     * @param usageModel the entry
+     * @return the copy
+     */
+    private static UsageModel copyOf(final UsageModel usageModel) {
+        final UsageModel copy = new UsageModel(usageModel.id, usageModel.packageName, usageModel.className);
+        copy.usage = usageModel.usage;
+        copy.disabled = usageModel.disabled;
+        copy.sticky = usageModel.sticky;
+        copy.score = usageModel.score;
+        copy.lastUsed = usageModel.lastUsed;
+
+        return copy;
+    }
+
+    /**
+     * Resolve label and icon for an entry of the ranking.
+     * @param usageModel the entry
+     * @param resources the activity this was called from
+     * @param iconCache the icon cache to get the icons from
+     * @return the application model or <code>null</code>, if the application does not exist anymore
+     */
+    private ApplicationModel resolve(final UsageModel usageModel, final Resources resources, final IconCache iconCache) {
+        final ActivityInfo info;
+        try {
+            info = pm.getActivityInfo(new ComponentName(usageModel.packageName, usageModel.className), 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+
+        if (!info.enabled) {
+            return null;
+        }
+
+        final ApplicationModel applicationModel = new ApplicationModel();
+        applicationModel.componentId = usageModel.id;
+        applicationModel.packageName = usageModel.packageName;
+        applicationModel.className = usageModel.className;
+        applicationModel.label = info.loadLabel(pm);
+        applicationModel.icon = iconCache.loadIcon(resources, pm, usageModel.id, info);
+
+        return applicationModel;
     }
 
     /**
@@ -261,55 +403,18 @@ public final class HomeModel {
      */
     public void toggleSticky(final String packageName, final String className) {
         if (packageName == null || className == null) {
-            delete(packageName, className);
             return;
         }
 
-        final SQLiteDatabase db = getDatabase();
+        synchronized (usages) {
+            loadUsages();
 
-        db.beginTransaction();
-        Cursor c = null;
-        try {
-            // Get entry
-            c = db.query(ApplicationUsageModel.ApplicationUsage.TABLE_NAME,
-                    new String[]{
-                            ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_STICKY
-                    },
-                    SELECTION, new String[]{packageName, className},
-                    null, null, null);
-            if (c != null) {
-                if (c.getCount() > 1) {
-                    delete(packageName, className);
-                }
-                if (c.moveToFirst()) {
-                    final boolean sticky = c.getInt(c.getColumnIndexOrThrow(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_STICKY)) > 0;
-                    // update
-                    final ContentValues values = new ContentValues(3);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_CLASS_NAME, className);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_PACKAGE_NAME, packageName);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_STICKY, !sticky);
-
-                    db.update(ApplicationUsageModel.ApplicationUsage.TABLE_NAME,
-                            values, SELECTION, new String[]{packageName, className});
-                    db.setTransactionSuccessful();
-                } else {
-                    // insert
-                    final ContentValues values = new ContentValues(4);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_CLASS_NAME, className);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_PACKAGE_NAME, packageName);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_USAGE, 0);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_DISABLED, false);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_STICKY, true);
-
-                    db.insertOrThrow(ApplicationUsageModel.ApplicationUsage.TABLE_NAME, null, values);
-                    db.setTransactionSuccessful();
-                }
-            }
-        } finally {
-            db.endTransaction();
-            if (c != null) {
-                c.close();
-            }
+            final UsageModel usageModel = obtainUsage(packageName, className);
+            upsert(TOGGLE_STICKY, usageModel.id);
+            ranking.remove(usageModel);
+            usageModel.sticky = !usageModel.sticky;
+            rank(usageModel);
+            publishFlags();
         }
     }
 
@@ -320,280 +425,344 @@ public final class HomeModel {
      */
     public void toggleDisabled(final String packageName, final String className) {
         if (packageName == null || className == null) {
-            delete(packageName, className);
             return;
         }
 
-        final SQLiteDatabase db = getDatabase();
+        synchronized (usages) {
+            loadUsages();
 
-        db.beginTransaction();
-        Cursor c = null;
-        try {
-            // Get entry
-            c = db.query(ApplicationUsageModel.ApplicationUsage.TABLE_NAME,
-                    new String[]{
-                            ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_DISABLED
-                    },
-                    SELECTION, new String[]{packageName, className},
-                    null, null, null);
-            if (c != null) {
-                if (c.getCount() > 1) {
-                    delete(packageName, className);
-                }
-                if (c.moveToFirst()) {
-                    final boolean disabled = c.getInt(c.getColumnIndexOrThrow(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_DISABLED)) > 0;
-                    // update
-                    final ContentValues values = new ContentValues(3);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_CLASS_NAME, className);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_PACKAGE_NAME, packageName);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_DISABLED, !disabled);
-
-                    db.update(ApplicationUsageModel.ApplicationUsage.TABLE_NAME,
-                            values, SELECTION, new String[]{packageName, className});
-                    db.setTransactionSuccessful();
-                } else {
-                    // insert
-                    final ContentValues values = new ContentValues(4);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_CLASS_NAME, className);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_PACKAGE_NAME, packageName);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_USAGE, 0);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_DISABLED, true);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_STICKY, false);
-
-                    db.insertOrThrow(ApplicationUsageModel.ApplicationUsage.TABLE_NAME, null, values);
-                    db.setTransactionSuccessful();
-                }
-            }
-        } finally {
-            db.endTransaction();
-            if (c != null) {
-                c.close();
-            }
+            final UsageModel usageModel = obtainUsage(packageName, className);
+            upsert(TOGGLE_DISABLED, usageModel.id);
+            ranking.remove(usageModel);
+            usageModel.disabled = !usageModel.disabled;
+            rank(usageModel);
+            publishFlags();
         }
     }
 
     /**
-     * Check if an application is sticky.
+     * Check if an application is sticky. This does not block, so it can be called from the
+     * main thread. Before the usages have been loaded, no application is sticky.
+     * @param id the id of the component
+     * @return if the application is sticky
+     */
+    public boolean isSticky(final int id) {
+        return stickyIds.get(id);
+    }
+
+    /**
+     * Check if an application is disabled. This does not block, so it can be called from the
+     * main thread. Before the usages have been loaded, no application is disabled.
+     * @param id the id of the component
+     * @return if the application is disabled
+     */
+    public boolean isDisabled(final int id) {
+        return disabledIds.get(id);
+    }
+
+    /**
+     * Reset the counter for an application.
      * @param packageName the package name
      * @param className the class name
-     * @return if the application is sticky
+     * @param resources the activity this was called from
+     * @param iconCache the icon cache to get the icons from
      */
-    public boolean isSticky(final String packageName, final String className) {
+    public void resetUsage(final String packageName, final String className, final Resources resources, final IconCache iconCache) {
         if (packageName == null || className == null) {
-            delete(packageName, className);
-            return false;
+            return;
         }
 
-        final SQLiteDatabase db = getDatabase();
+        // Pending launches happened before the reset
+        usageRecorder.flush();
 
-        boolean sticky = false;
+        synchronized (usages) {
+            loadUsages();
 
-        db.beginTransaction();
-        Cursor c = null;
-        try {
-            // Get entry
-            c = db.query(ApplicationUsageModel.ApplicationUsage.TABLE_NAME,
-                    new String[]{
-                            ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_STICKY
-                    },
-                    SELECTION, new String[]{packageName, className},
-                    null, null, null);
-            if (c != null) {
-                if (c.getCount() > 1) {
-                    delete(packageName, className);
-                }
-                if (c.moveToFirst()) {
-                    sticky = c.getInt(c.getColumnIndexOrThrow(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_STICKY)) > 0;
-                }
-            }
-        } finally {
-            db.endTransaction();
-            if (c != null) {
-                c.close();
-            }
+            final UsageModel usageModel = obtainUsage(packageName, className);
+            upsert(RESET_USAGE, usageModel.id);
+            ranking.remove(usageModel);
+            usageModel.usage = 0;
+            usageModel.score = FrecencyUtil.NO_SCORE;
+            rank(usageModel);
         }
 
-        return sticky;
+        updateApplications(resources, iconCache);
     }
 
     /**
-     * Check if an application is disabled.
+     * Increase the counter and the score of an app. The launch is only counted in memory and
+     * written to the database later by the {@link UsageRecorder}.
+     * <p/>
+     * This method has to be called from an async task.
      * @param packageName the package name
      * @param className the class name
-     * @return if the application is disabled
      */
-    public boolean isDisabled(final String packageName, final String className) {
+    public void addUsage(final String packageName, final String className) {
         if (packageName == null || className == null) {
-            delete(packageName, className);
-            return true;
+            return;
         }
 
-        final SQLiteDatabase db = getDatabase();
+        final long now = System.currentTimeMillis();
 
-        boolean disabled = false;
+        synchronized (usages) {
+            loadUsages();
 
-        db.beginTransaction();
-        Cursor c = null;
-        try {
-            // Get entry
-            c = db.query(ApplicationUsageModel.ApplicationUsage.TABLE_NAME,
-                    new String[]{
-                            ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_DISABLED
-                    },
-                    SELECTION, new String[]{packageName, className},
-                    null, null, null);
-            if (c != null) {
-                if (c.getCount() > 1) {
-                    delete(packageName, className);
-                }
-                if (c.moveToFirst()) {
-                    disabled = c.getInt(c.getColumnIndexOrThrow(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_DISABLED)) > 0;
-                }
-            }
-        } finally {
-            db.endTransaction();
-            if (c != null) {
-                c.close();
+            final UsageModel usageModel = obtainUsage(packageName, className);
+            ranking.remove(usageModel);
+            if (usageModel.usage < Integer.MAX_VALUE) {
+                usageModel.usage = usageModel.usage + 1;
             }
+            usageModel.score = FrecencyUtil.addLaunch(usageModel.score, now);
+            usageModel.lastUsed = now;
+            rank(usageModel);
+
+            usageRecorder.record(usageModel.id, packageName, className, usageModel.score, now);
         }
+    }
 
-        return disabled;
+    /**
+     * Make sure a row for the component exists and apply an update to it. Both statements
+     * use the primary key on the component and run in one transaction on the writer thread.
+     * @param updateSql the update statement, taking the id of the component as argument
+     * @param id the id of the component
+     */
+    private void upsert(final String updateSql, final int id) {
+        final Object[] bindArgs = new Object[]{id};
+
+        writer.submit(new DatabaseWriter.Write() {
+            @Override
+            public void write(final SQLiteDatabase db) {
+                db.beginTransaction();
+                try {
+                    registry.writePending(db);
+                    db.execSQL(ApplicationUsageModel.INSERT_OR_IGNORE, bindArgs);
+                    db.execSQL(updateSql, bindArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
     }
 
     /**
-     * Reset the counter for an application.
-     * @param packageName the package name
-     * @param className the class name
-     * @param resources the activity this was called from
-     * @param iconCache the icon cache to get the icons from
+     * Delete the usage of all components which are not in the list of installed launcher
+     * activities. The list is compared in one pass and all orphans are deleted in one
+     * transaction.
+     * <p/>
+     * The icons of the components that are not installed anymore are deleted from disk.
+     * <p/>
+     * This method has to be called from an async task.
+     * @param resolveInfoList the complete list of installed launcher activities
+     * @param iconCache the icon cache to delete the icons from
      */
-    public void resetUsage(final String packageName, final String className, final Resources resources, final IconCache iconCache) {
-        final SQLiteDatabase db = getDatabase();
+    public void reconcile(final List<ResolveInfo> resolveInfoList, final IconCache iconCache) {
+        iconCache.retain(resolveInfoList);
 
-        db.beginTransaction();
-        Cursor c = null;
-        try {
-            // Get entry
-            c = db.query(ApplicationUsageModel.ApplicationUsage.TABLE_NAME,
-                    new String[]{
-                            ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_USAGE
-                    },
-                    SELECTION, new String[]{packageName, className},
-                    null, null, null);
-            if (c != null) {
-                if (c.getCount() > 1) {
-                    delete(packageName, className);
-                }
-                if (c.moveToFirst()) {
-                    // update
-                    final ContentValues values = new ContentValues(3);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_CLASS_NAME, className);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_PACKAGE_NAME, packageName);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_USAGE, 0);
-
-                    db.update(ApplicationUsageModel.ApplicationUsage.TABLE_NAME,
-                            values, SELECTION, new String[]{packageName, className});
-                    db.setTransactionSuccessful();
-                } else {
-                    // insert
-                    final ContentValues values = new ContentValues(4);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_CLASS_NAME, className);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_PACKAGE_NAME, packageName);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_USAGE, 0);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_DISABLED, false);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_STICKY, false);
-
-                    db.insertOrThrow(ApplicationUsageModel.ApplicationUsage.TABLE_NAME, null, values);
-                    db.setTransactionSuccessful();
+        final SparseBooleanArray installed = new SparseBooleanArray(resolveInfoList.size());
+        for (int i = 0, resolveInfoListSize = resolveInfoList.size(); i < resolveInfoListSize; i++) {
+            final ResolveInfo resolveInfo = resolveInfoList.get(i);
+            installed.put(registry.getId(resolveInfo.activityInfo.packageName, resolveInfo.activityInfo.name), true);
+        }
+
+        synchronized (usages) {
+            loadUsages();
+
+            final List<UsageModel> orphans = new ArrayList<>(0);
+            for (int i = 0, usagesSize = usages.size(); i < usagesSize; i++) {
+                if (!installed.get(usages.keyAt(i))) {
+                    orphans.add(usages.valueAt(i));
                 }
             }
-        } finally {
-            db.endTransaction();
-            if (c != null) {
-                c.close();
+
+            if (orphans.isEmpty()) {
+                return;
             }
+
+            writer.submit(new DatabaseWriter.Write() {
+                @Override
+                public void write(final SQLiteDatabase db) {
+                    final SQLiteStatement statement = db.compileStatement(DELETE);
+
+                    db.beginTransaction();
+                    try {
+                        for (int i = 0, orphansSize = orphans.size(); i < orphansSize; i++) {
+                            final UsageModel usageModel = orphans.get(i);
+
+                            statement.bindLong(1, usageModel.id);
+                            statement.executeUpdateDelete();
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                        statement.close();
+                    }
+                }
+            });
+
+            for (int i = 0, orphansSize = orphans.size(); i < orphansSize; i++) {
+                final UsageModel usageModel = orphans.get(i);
+
+                usages.remove(usageModel.id);
+                ranking.remove(usageModel);
+                resolvedApplications.remove(usageModel.id);
+            }
+            publishFlags();
         }
+    }
 
-        updateApplications(resources, iconCache);
+    /**
+     *
+     * @return if the last maintenance is older than one day
+     */
+    public boolean isMaintenanceDue() {
+        final long lastMaintenance = preferences.getLong(KEY_LAST_MAINTENANCE, 0);
+
+        return Math.abs(System.currentTimeMillis() - lastMaintenance) >= MAINTENANCE_INTERVAL;
     }
 
     /**
-     * Increase the counter of an app.
-     * @param packageName the package name
-     * @param className the class name
-     * @param resources the activity this was called from
-     * @param iconCache the icon cache to get the icons from
+     * Remove stale rows and compact the database.
+     * <p/>
+     * This method has to be called from an async task.
+     * @param iconCache the icon cache to delete the icons of removed components from
      */
-    public void addUsage(final String packageName, final String className, final Resources resources, final IconCache iconCache) {
-        if (packageName == null || className == null) {
-            delete(packageName, className);
+    public void maintain(final IconCache iconCache) {
+        final Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.addCategory(Intent.CATEGORY_LAUNCHER);
+
+        reconcile(pm.queryIntentActivities(intent, 0), iconCache);
+
+        writer.submit(new DatabaseWriter.Write() {
+            @Override
+            public void write(final SQLiteDatabase db) {
+                db.execSQL(VACUUM);
+                db.execSQL(ANALYZE);
+            }
+        });
+
+        preferences.edit().putLong(KEY_LAST_MAINTENANCE, System.currentTimeMillis()).apply();
+    }
+
+    /**
+     * Load the whole usage table into memory in one pass. Subsequent calls do nothing.
+     * <p/>
+     * The caller has to hold the lock on {@link #usages}.
+     */
+    private void loadUsages() {
+        if (usagesLoaded) {
             return;
         }
 
-        final SQLiteDatabase db = getDatabase();
+        // Pending launches are not part of the table yet
+        usageRecorder.flush();
+        registry.load();
+
+        // A single query reads a consistent snapshot, even while the writer is writing
+        final SQLiteDatabase db = dbHelper.getReadableDatabase();
 
-        db.beginTransaction();
         Cursor c = null;
         try {
-            // Get entry
             c = db.query(ApplicationUsageModel.ApplicationUsage.TABLE_NAME,
-                    new String[]{
-                            ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_USAGE
-                    },
-                    SELECTION, new String[]{packageName, className},
-                    null, null, null);
+                    COLUMNS, null, null, null, null, ORDER_BY);
+
             if (c != null) {
-                if (c.getCount() > 1) {
-                    delete(packageName, className);
-                }
-                if (c.moveToFirst()) {
-                    // update
-                    final int usage = c.getInt(c.getColumnIndexOrThrow(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_USAGE));
-
-                    if (usage < Integer.MAX_VALUE) {
-                        final ContentValues values = new ContentValues(3);
-                        values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_CLASS_NAME, className);
-                        values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_PACKAGE_NAME, packageName);
-                        values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_USAGE, usage + 1);
-
-                        db.update(ApplicationUsageModel.ApplicationUsage.TABLE_NAME,
-                                values, SELECTION, new String[]{packageName, className});
-                        db.setTransactionSuccessful();
-                    } else {
-                        resetUsage(packageName, className, resources, iconCache);
+                final int componentIndex = c.getColumnIndexOrThrow(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_COMPONENT);
+                final int usageIndex = c.getColumnIndexOrThrow(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_USAGE);
+                final int disabledIndex = c.getColumnIndexOrThrow(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_DISABLED);
+                final int stickyIndex = c.getColumnIndexOrThrow(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_STICKY);
+                final int scoreIndex = c.getColumnIndexOrThrow(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_SCORE);
+                final int lastUsedIndex = c.getColumnIndexOrThrow(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_LAST_USED);
+
+                for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+                    final int id = c.getInt(componentIndex);
+                    final String packageName = registry.getPackageName(id);
+                    final String className = registry.getClassName(id);
+
+                    if (packageName == null || className == null) {
+                        continue;
                     }
-                } else {
-                    // insert
-                    final ContentValues values = new ContentValues(4);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_CLASS_NAME, className);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_PACKAGE_NAME, packageName);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_USAGE, 1);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_DISABLED, false);
-                    values.put(ApplicationUsageModel.ApplicationUsage.COLUMN_NAME_STICKY, false);
-
-                    db.insertOrThrow(ApplicationUsageModel.ApplicationUsage.TABLE_NAME, null, values);
-                    db.setTransactionSuccessful();
+
+                    final UsageModel usageModel = new UsageModel(id, packageName, className);
+                    usageModel.usage = c.getInt(usageIndex);
+                    usageModel.disabled = c.getInt(disabledIndex) > 0;
+                    usageModel.sticky = c.getInt(stickyIndex) > 0;
+                    usageModel.score = c.getDouble(scoreIndex);
+                    usageModel.lastUsed = c.getLong(lastUsedIndex);
+
+                    usages.put(id, usageModel);
+                    rank(usageModel);
                 }
             }
+
+            usagesLoaded = true;
+        } catch (final IllegalArgumentException e) {
+            usages.clear();
+            ranking.clear();
         } finally {
-            db.endTransaction();
             if (c != null) {
                 c.close();
             }
         }
 
-        updateApplications(resources, iconCache);
+        publishFlags();
     }
 
     /**
-     * Delete all entries for packageName and className.
+     * Replace the arrays of the disabled and sticky ids with the flags of the usages.
+     * <p/>
+     * The caller has to hold the lock on {@link #usages}.
+     */
+    private void publishFlags() {
+        final SparseBooleanArray newDisabledIds = new SparseBooleanArray();
+        final SparseBooleanArray newStickyIds = new SparseBooleanArray();
+
+        for (int i = 0, usagesSize = usages.size(); i < usagesSize; i++) {
+            final UsageModel usageModel = usages.valueAt(i);
+
+            if (usageModel.disabled) {
+                newDisabledIds.append(usageModel.id, true);
+            }
+            if (usageModel.sticky) {
+                newStickyIds.append(usageModel.id, true);
+            }
+        }
+
+        disabledIds = newDisabledIds;
+        stickyIds = newStickyIds;
+    }
+
+    /**
+     * Put an entry into the ranking, if it may be shown in the dock. Entries have to be
+     * removed from the ranking before they are changed.
+     * <p/>
+     * The caller has to hold the lock on {@link #usages}.
+     * @param usageModel the entry
+     */
+    private void rank(final UsageModel usageModel) {
+        if (!usageModel.disabled && (usageModel.usage > 0 || usageModel.sticky)) {
+            ranking.add(usageModel);
+        }
+    }
+
+    /**
+     * Get the in-memory usage for a component and create it, if it does not exist yet.
+     * <p/>
+     * The caller has to hold the lock on {@link #usages}.
      * @param packageName the package name
      * @param className the class name
+     * @return the usage model
      */
-    private void delete(final String packageName, final String className) {
-        final SQLiteDatabase db = getDatabase();
-        db.delete(ApplicationUsageModel.ApplicationUsage.TABLE_NAME,
-                SELECTION, new String[]{packageName, className});
+    private UsageModel obtainUsage(final String packageName, final String className) {
+        final int id = registry.getId(packageName, className);
+
+        UsageModel usageModel = usages.get(id);
+        if (usageModel == null) {
+            usageModel = new UsageModel(id, packageName, className);
+            usages.put(id, usageModel);
+        }
+
+        return usageModel;
     }
 
     /**
@@ -613,4 +782,31 @@ public final class HomeModel {
         this.appWidgetId = appWidgetId;
     }
 
+    /**
+     * Orders entries like the dock: sticky first, then by score, then by package name and
+     * class name, all descending.
+     */
+    private static final class RankingComparator implements Comparator<UsageModel> {
+        @Override
+        public int compare(final UsageModel left, final UsageModel right) {
+            if (left.sticky != right.sticky) {
+                if (left.sticky) {
+                    return -1;
+                }
+                return 1;
+            }
+            final int scoreCompare = Double.compare(right.score, left.score);
+            if (scoreCompare != 0) {
+                return scoreCompare;
+            }
+
+            final int packageNameCompare = right.packageName.compareTo(left.packageName);
+            if (packageNameCompare != 0) {
+                return packageNameCompare;
+            }
+
+            return right.className.compareTo(left.className);
+        }
+    }
+
 }
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2018  Clemens Bartz
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.clemensbartz.android.launcher.models;
+
+import android.content.Context;
+import android.content.pm.LauncherApps;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Process-wide tracker for changes of installed packages, built on
+ * {@link LauncherApps.Callback}. It is registered once for the lifetime of the process, so
+ * changes are seen while the drawer is hidden as well.
+ * <p/>
+ * Bursts of changes, e.g. from updates of many apps at once, are merged per package and
+ * delivered together, once no change has come in for {@link #COALESCE_DELAY} milliseconds.
+ * Changes that happen while no listener is registered are kept and delivered to the next
+ * listener. Changes that happened while the process was dead are caught up with by the
+ * catalog, using the sequence numbers of package changes.
+ *
+ * @author Clemens Bartz
+ * @since 1.4
+ */
+public final class PackageChangeTracker {
+
+    /** The time in milliseconds without changes after which a burst is delivered. */
+    private static final long COALESCE_DELAY = 500;
+    /** The maximum time in milliseconds a change is held back in a burst. */
+    private static final long MAX_COALESCE_DELAY = 3000;
+
+    /**
+     * The instance.
+     */
+    private static PackageChangeTracker instance;
+
+    /** The listeners. All of them are called on the main thread. */
+    private final List<Listener> listeners = new ArrayList<>(1);
+    /** The packages that have changed and have not been delivered yet. */
+    private final Set<String> pendingPackages = new LinkedHashSet<>();
+    /** The handler of the main thread. */
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    /** The time of the first change of the current burst, or 0, if there is none. */
+    private long burstStart = 0;
+
+    /** Delivers the current burst. */
+    private final Runnable deliver = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+    /** The user of this process. Only packages of this user are shown. */
+    private final UserHandle user = Process.myUserHandle();
+
+    /** The callback for package changes. */
+    private final LauncherApps.Callback callback = new LauncherApps.Callback() {
+        @Override
+        public void onPackageRemoved(final String packageName, final UserHandle userHandle) {
+            onPackageChanged(packageName, userHandle);
+        }
+
+        @Override
+        public void onPackageAdded(final String packageName, final UserHandle userHandle) {
+            onPackageChanged(packageName, userHandle);
+        }
+
+        @Override
+        public void onPackageChanged(final String packageName, final UserHandle userHandle) {
+            if (user.equals(userHandle)) {
+                dispatch(packageName);
+            }
+        }
+
+        @Override
+        public void onPackagesAvailable(final String[] packageNames, final UserHandle userHandle, final boolean replacing) {
+            onPackagesChanged(packageNames, userHandle);
+        }
+
+        @Override
+        public void onPackagesUnavailable(final String[] packageNames, final UserHandle userHandle, final boolean replacing) {
+            onPackagesChanged(packageNames, userHandle);
+        }
+
+        /**
+         * Dispatch changes of several packages.
+         * @param packageNames the package names
+         * @param userHandle the user of the packages
+         */
+        private void onPackagesChanged(final String[] packageNames, final UserHandle userHandle) {
+            if (user.equals(userHandle)) {
+                for (String packageName : packageNames) {
+                    dispatch(packageName);
+                }
+            }
+        }
+    };
+
+    /**
+     * Listener for package changes.
+     */
+    public interface Listener {
+        /**
+         * Called on the main thread, when packages have been added, removed or changed.
+         * @param packageNames the package names, every package is only contained once
+         */
+        void onPackagesChanged(Collection<String> packageNames);
+    }
+
+    /**
+     * Get the tracker. This must be called from the main thread.
+     * @param context the context to get the launcher apps service from
+     * @return the instance of the tracker
+     */
+    public static PackageChangeTracker getInstance(final Context context) {
+        if (instance == null) {
+            instance = new PackageChangeTracker(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    /**
+     * Create a new tracker and register it.
+     * @param context the application context
+     */
+    private PackageChangeTracker(final Context context) {
+        final Object service = context.getSystemService(Context.LAUNCHER_APPS_SERVICE);
+
+        if (service instanceof LauncherApps) {
+            ((LauncherApps) service).registerCallback(callback, handler);
+        }
+    }
+
+    /**
+     * Add a listener. Changes that have happened while no listener was registered are
+     * delivered right away.
+     * @param listener the listener
+     */
+    public void addListener(final Listener listener) {
+        listeners.add(listener);
+
+        deliver();
+    }
+
+    /**
+     * Remove a listener.
+     * @param listener the listener
+     */
+    public void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Add a change to the current burst and deliver the burst, once no change has come in
+     * for a while.
+     * @param packageName the package name
+     */
+    private void dispatch(final String packageName) {
+        pendingPackages.add(packageName);
+
+        final long now = SystemClock.uptimeMillis();
+        if (burstStart == 0) {
+            burstStart = now;
+        }
+
+        // Wait for more changes, but do not hold back the first one for too long
+        handler.removeCallbacks(deliver);
+        handler.postAtTime(deliver, Math.min(now + COALESCE_DELAY, burstStart + MAX_COALESCE_DELAY));
+    }
+
+    /**
+     * Deliver the current burst to the listeners, or keep it for the next listener.
+     */
+    private void deliver() {
+        handler.removeCallbacks(deliver);
+        burstStart = 0;
+
+        if (listeners.isEmpty() || pendingPackages.isEmpty()) {
+            return;
+        }
+
+        final Collection<String> packageNames = Collections.unmodifiableList(new ArrayList<>(pendingPackages));
+        pendingPackages.clear();
+
+        for (int i = 0, listenersSize = listeners.size(); i < listenersSize; i++) {
+            listeners.get(i).onPackagesChanged(packageNames);
+        }
+    }
+}
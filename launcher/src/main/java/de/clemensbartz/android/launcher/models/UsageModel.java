@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2018  Clemens Bartz
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.clemensbartz.android.launcher.models;
+
+/**
+ * In-memory copy of one row of the application usage table. Out of performance reasons,
+ * this class will be excluded from CheckStyle checks.
+ *
+ * @author Clemens Bartz
+ * @since 1.4
+ */
+final class UsageModel {
+    /** The id of the component. */
+    @SuppressWarnings("CheckStyle")
+    final int id;
+    /** The package name. */
+    @SuppressWarnings("CheckStyle")
+    final String packageName;
+    /** The full class name. */
+    @SuppressWarnings("CheckStyle")
+    final String className;
+    /** The usage counter. */
+    @SuppressWarnings("CheckStyle")
+    int usage;
+    /** The disabled flag. */
+    @SuppressWarnings("CheckStyle")
+    boolean disabled;
+    /** The sticky flag. */
+    @SuppressWarnings("CheckStyle")
+    boolean sticky;
+    /** The time-decayed score, see {@link de.clemensbartz.android.launcher.util.FrecencyUtil}. */
+    @SuppressWarnings("CheckStyle")
+    double score;
+    /** The time of the last launch in milliseconds. */
+    @SuppressWarnings("CheckStyle")
+    long lastUsed;
+
+    /**
+     * Create a new usage model for a component.
+     * @param id the id of the component
+     * @param packageName the package name
+     * @param className the class name
+     */
+    UsageModel(final int id, final String packageName, final String className) {
+        this.id = id;
+        this.packageName = packageName;
+        this.className = className;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2018  Clemens Bartz
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.clemensbartz.android.launcher.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pool of mutable ARGB_8888 bitmaps, bucketed by their size. Icons are nearly all of the
+ * same size, so a released icon can be reused for the next one without an allocation.
+ *
+ * @author Clemens Bartz
+ * @since 1.4
+ */
+final class BitmapPool {
+
+    /** The shift of the width in the key of a bucket. */
+    private static final int WIDTH_SHIFT = 16;
+    /** The mask of the height in the key of a bucket. */
+    private static final int HEIGHT_MASK = 0xffff;
+
+    /** The buckets of bitmaps, by width and height. */
+    private final SparseArray<List<Bitmap>> buckets = new SparseArray<>();
+    /** The maximum size of the pooled bitmaps in bytes. */
+    private final int maxSize;
+    /** The size of the pooled bitmaps in bytes. */
+    private int size = 0;
+
+    /**
+     * Create a new pool.
+     * @param maxSize the maximum size of the pooled bitmaps in bytes
+     */
+    BitmapPool(final int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get a bitmap from the pool or create a new one.
+     * @param width the width
+     * @param height the height
+     * @param clear flag, if a pooled bitmap has to be cleared to transparent; callers that
+     *              overwrite every pixel do not need to clear it
+     * @return a mutable ARGB_8888 bitmap
+     */
+    Bitmap obtain(final int width, final int height, final boolean clear) {
+        final Bitmap bitmap = take(width, height);
+
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+
+        if (clear) {
+            bitmap.eraseColor(Color.TRANSPARENT);
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Give a bitmap back to the pool. The bitmap must not be used anymore afterwards.
+     * Bitmaps that cannot be reused and bitmaps beyond the maximum size are left to the
+     * garbage collector.
+     * @param bitmap the bitmap, can be <code>null</code>
+     */
+    synchronized void release(final Bitmap bitmap) {
+        if (bitmap == null
+                || bitmap.isRecycled()
+                || !bitmap.isMutable()
+                || bitmap.getConfig() != Bitmap.Config.ARGB_8888
+                || size + bitmap.getAllocationByteCount() > maxSize) {
+            return;
+        }
+
+        final int key = key(bitmap.getWidth(), bitmap.getHeight());
+        List<Bitmap> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            buckets.put(key, bucket);
+        }
+
+        // A bitmap must never be handed out twice
+        for (int i = 0, bucketSize = bucket.size(); i < bucketSize; i++) {
+            if (bucket.get(i) == bitmap) {
+                return;
+            }
+        }
+
+        bucket.add(bitmap);
+        size = size + bitmap.getAllocationByteCount();
+    }
+
+    /**
+     * Remove all bitmaps.
+     * @return the size of the removed bitmaps in bytes
+     */
+    synchronized int clear() {
+        final int clearedSize = size;
+
+        buckets.clear();
+        size = 0;
+
+        return clearedSize;
+    }
+
+    /**
+     * Take a bitmap out of its bucket.
+     * @param width the width
+     * @param height the height
+     * @return the bitmap or <code>null</code>, if the bucket is empty
+     */
+    private synchronized Bitmap take(final int width, final int height) {
+        final List<Bitmap> bucket = buckets.get(key(width, height));
+
+        if (bucket == null || bucket.isEmpty()) {
+            return null;
+        }
+
+        final Bitmap bitmap = bucket.remove(bucket.size() - 1);
+        size = size - bitmap.getAllocationByteCount();
+
+        return bitmap;
+    }
+
+    /**
+     * @param width the width
+     * @param height the height
+     * @return the key of the bucket
+     */
+    private static int key(final int width, final int height) {
+        return (width << WIDTH_SHIFT) | (height & HEIGHT_MASK);
+    }
+}
@@ -27,18 +27,35 @@ import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.util.DisplayMetrics;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
 /**
- * Util used to scale bitmaps.
+ * Util used to scale bitmaps. Bitmaps are taken from a pool, so loading icons does not
+ * allocate once icons have been released with {@link #release(Bitmap)}.
  * @author Clemens Bartz
  * @since 1.4
  */
 public final class BitmapUtil {
 
-    /** The default separator. */
-    private static final String SEPARATOR = "&";
-
     /** The default dp. */
     private static final int DEFAULT_DP = 60;
+    /** The size of a pixel of an ARGB_8888 bitmap in bytes. */
+    private static final int ARGB_BYTES = 4;
+    /** The maximum size of the pooled bitmaps (2 MiB). */
+    private static final int POOL_SIZE = 2 * 1024 * 1024;
+
+    /** The pool of bitmaps. */
+    private static final BitmapPool POOL = new BitmapPool(POOL_SIZE);
+    /** A canvas per thread, so drawing does not allocate. */
+    private static final ThreadLocal<Canvas> CANVAS = new ThreadLocal<Canvas>() {
+        @Override
+        protected Canvas initialValue() {
+            return new Canvas();
+        }
+    };
 
     /**
      * Hidden constructor.
@@ -47,17 +64,8 @@ public final class BitmapUtil {
     }
 
     /**
-     * Create a key for a package name and a class name.
-     * @param packname name of the package
-     * @param classname name of the class
-     * @return the key
-     */
-    public static String createKey(final String packname, final String classname) {
-        return packname + SEPARATOR + classname;
-    }
-
-    /**
-     * Resize a drawable to the default dp.
+     * Resize a drawable to the default dp. The drawable is drawn straight into a pooled
+     * bitmap of the default size.
      * @param res the resources
      * @param drawable the drawable
      * @return a bitmap drawable
@@ -65,10 +73,100 @@ public final class BitmapUtil {
     public static BitmapDrawable resizeDrawable(final Resources res, final Drawable drawable) {
         final int px = pxFrom60dp(res.getDisplayMetrics());
 
-        final Bitmap bitmap = convertToBitmap(drawable);
-        final Bitmap resizedBitmap = Bitmap.createScaledBitmap(bitmap, px, px, false);
+        final Bitmap bitmap = POOL.obtain(px, px, true);
+        final Canvas canvas = CANVAS.get();
+        canvas.setBitmap(bitmap);
+
+        try {
+            draw(canvas, drawable, px);
+        } finally {
+            // Do not keep the bitmap alive through the canvas
+            canvas.setBitmap(null);
+        }
+
+        return new BitmapDrawable(res, bitmap);
+    }
+
+    /**
+     * Give the bitmap of an icon back to the pool. The bitmap must not be shown or used
+     * anymore afterwards.
+     * @param bitmap the bitmap, can be <code>null</code>
+     */
+    public static void release(final Bitmap bitmap) {
+        POOL.release(bitmap);
+    }
+
+    /**
+     * Remove all bitmaps from the pool.
+     * @return the size of the removed bitmaps in bytes
+     */
+    public static int clearPool() {
+        return POOL.clear();
+    }
+
+    /**
+     * Write the size and the raw pixels of a bitmap. Missing bitmaps are written with a size of 0.
+     * @param outputStream the stream
+     * @param bitmap the bitmap, can be <code>null</code>
+     * @throws IOException if the stream cannot be written
+     */
+    public static void writePixels(final DataOutputStream outputStream, final Bitmap bitmap) throws IOException {
+        if (bitmap == null || bitmap.isRecycled()) {
+            outputStream.writeInt(0);
+            outputStream.writeInt(0);
+            return;
+        }
+
+        Bitmap argbBitmap = bitmap;
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            argbBitmap = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+        }
+
+        final ByteBuffer pixels = ByteBuffer.allocate(argbBitmap.getByteCount());
+        argbBitmap.copyPixelsToBuffer(pixels);
 
-        return new BitmapDrawable(res, resizedBitmap);
+        outputStream.writeInt(argbBitmap.getWidth());
+        outputStream.writeInt(argbBitmap.getHeight());
+        outputStream.write(pixels.array());
+    }
+
+    /**
+     * Read a bitmap written by {@link #writePixels(DataOutputStream, Bitmap)}. The pixels are
+     * copied straight from the buffer, which can be a memory-mapped file.
+     * @param buffer the buffer
+     * @return the bitmap or <code>null</code>, if no bitmap was written
+     * @throws java.nio.BufferUnderflowException if the buffer is too short
+     * @throws IllegalArgumentException if the buffer is too short for the pixels
+     */
+    public static Bitmap readPixels(final ByteBuffer buffer) {
+        final int width = buffer.getInt();
+        final int height = buffer.getInt();
+
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+
+        // A broken file must not make us allocate a huge bitmap
+        if ((long) width * height * ARGB_BYTES > buffer.remaining()) {
+            throw new IllegalArgumentException("Broken size " + width + "x" + height);
+        }
+
+        // All pixels are overwritten, so a pooled bitmap does not need to be cleared
+        final Bitmap bitmap = POOL.obtain(width, height, false);
+
+        try {
+            final ByteBuffer pixels = buffer.slice();
+            pixels.limit(bitmap.getByteCount());
+            bitmap.copyPixelsFromBuffer(pixels);
+        } catch (final BufferUnderflowException | IllegalArgumentException e) {
+            // Nobody has seen the bitmap yet, so it can be reused
+            POOL.release(bitmap);
+            throw e;
+        }
+
+        buffer.position(buffer.position() + bitmap.getByteCount());
+
+        return bitmap;
     }
 
     /**
@@ -81,40 +179,50 @@ public final class BitmapUtil {
     }
 
     /**
-     * Convert any drawable in a bitmap.
+     * Draw any drawable scaled to a square.
+     * @param canvas the canvas of the square bitmap
      * @param drawable the drawable
-     * @return a bitmap
+     * @param px the size of the square
      */
-    private static Bitmap convertToBitmap(final Drawable drawable) {
+    private static void draw(final Canvas canvas, final Drawable drawable, final int px) {
         // Check if there is a shortcut
+        Bitmap bitmap = null;
         if (drawable instanceof BitmapDrawable) {
-            final BitmapDrawable bitmapDrawable = (BitmapDrawable) drawable;
-            if (bitmapDrawable.getBitmap() != null) {
-                return bitmapDrawable.getBitmap();
-            }
+            bitmap = ((BitmapDrawable) drawable).getBitmap();
         }
 
-        // Get the foreground drawable
-        Drawable foregroundDrawable = drawable;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && drawable instanceof AdaptiveIconDrawable) {
-            foregroundDrawable = ((AdaptiveIconDrawable) drawable).getForeground();
-        }
+        final int width;
+        final int height;
+        if (bitmap != null) {
+            width = bitmap.getWidth();
+            height = bitmap.getHeight();
+        } else {
+            // Get the foreground drawable
+            Drawable foregroundDrawable = drawable;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && drawable instanceof AdaptiveIconDrawable) {
+                foregroundDrawable = ((AdaptiveIconDrawable) drawable).getForeground();
+            }
 
-        // Check the size
-        final Rect bounds = foregroundDrawable.getBounds();
-        final int boundsWidth = bounds.isEmpty() ? drawable.getIntrinsicWidth() : bounds.width();
-        final int boundsHeight = bounds.isEmpty() ? drawable.getIntrinsicHeight() : bounds.height();
+            // Check the size
+            final Rect bounds = foregroundDrawable.getBounds();
+            final int boundsWidth = bounds.isEmpty() ? drawable.getIntrinsicWidth() : bounds.width();
+            final int boundsHeight = bounds.isEmpty() ? drawable.getIntrinsicHeight() : bounds.height();
 
-        final int bitmapWidth = (boundsWidth > 0) ? boundsWidth : 1;
-        final int bitmapHeight = (boundsHeight > 0) ? boundsHeight : 1;
+            width = (boundsWidth > 0) ? boundsWidth : 1;
+            height = (boundsHeight > 0) ? boundsHeight : 1;
+        }
 
-        // Create the bitmap
-        final Bitmap bitmap = Bitmap.createBitmap(bitmapWidth, bitmapHeight, Bitmap.Config.ARGB_8888);
+        // Draw the picture at its own size on a canvas scaled to the square
+        final int saveCount = canvas.save();
+        canvas.scale((float) px / width, (float) px / height);
 
-        // Draw the picture on the canvas
-        Canvas canvas = new Canvas(bitmap);
-        drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
-        drawable.draw(canvas);
-        return bitmap;
+        if (bitmap != null) {
+            canvas.drawBitmap(bitmap, 0, 0, null);
+        } else {
+            drawable.setBounds(0, 0, width, height);
+            drawable.draw(canvas);
+        }
+
+        canvas.restoreToCount(saveCount);
     }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2018  Clemens Bartz
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.clemensbartz.android.launcher.util;
+
+/**
+ * Util used to calculate time-decayed usage scores.
+ * <p/>
+ * Every launch is worth 1 at the time it happens and loses half of its worth every
+ * {@link #HALF_LIFE} milliseconds. Instead of decaying all scores over time, the score is
+ * stored relative to a fixed point in time on a log2 scale:
+ * <code>score = log2(sum(2^(launch / HALF_LIFE)))</code>. All scores decay by the same
+ * factor, so comparing the stored values compares the current scores, and adding a launch
+ * only needs the stored value.
+ *
+ * @author Clemens Bartz
+ * @since 1.4
+ */
+public final class FrecencyUtil {
+
+    /** The score of an application that has never been launched. */
+    public static final double NO_SCORE = 0;
+
+    /** The half-life of a launch in milliseconds (one week). */
+    private static final double HALF_LIFE = 7d * 24d * 60d * 60d * 1000d;
+    /** The natural logarithm of two. */
+    private static final double LN_2 = Math.log(2);
+
+    /**
+     * Hidden constructor.
+     */
+    private FrecencyUtil() {
+    }
+
+    /**
+     * Add a launch to a score.
+     * @param score the score
+     * @param time the time of the launch in milliseconds
+     * @return the new score
+     */
+    public static double addLaunch(final double score, final long time) {
+        final double launch = time / HALF_LIFE;
+
+        if (score <= NO_SCORE) {
+            return launch;
+        }
+
+        // log2(2^a + 2^b) without leaving the log scale
+        final double max = Math.max(score, launch);
+        final double min = Math.min(score, launch);
+
+        return max + Math.log1p(Math.pow(2, min - max)) / LN_2;
+    }
+
+    /**
+     * Create a score for a number of launches at the same time.
+     * @param count the number of launches
+     * @param time the time of the launches in milliseconds
+     * @return the score
+     */
+    public static double fromCount(final int count, final long time) {
+        if (count <= 0) {
+            return NO_SCORE;
+        }
+
+        return time / HALF_LIFE + Math.log(count) / LN_2;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2018  Clemens Bartz
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.clemensbartz.android.launcher.util;
+
+import android.content.Context;
+import android.content.pm.ChangedPackages;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.provider.Settings;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Util used to find out which packages have changed since a point in time.
+ * <p/>
+ * The package manager numbers package changes since boot (API 26). A sequence number is only
+ * valid together with the boot count (API 24) it has been read in.
+ *
+ * @author Clemens Bartz
+ * @since 1.4
+ */
+public final class PackageChangesUtil {
+
+    /** Value for a boot count or a sequence number that is not available. */
+    public static final int UNKNOWN = -1;
+
+    /**
+     * Hidden constructor.
+     */
+    private PackageChangesUtil() {
+    }
+
+    /**
+     * @param context the context
+     * @return the number of boots of the device or {@link #UNKNOWN}
+     */
+    public static int getBootCount(final Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return UNKNOWN;
+        }
+
+        return Settings.Global.getInt(context.getContentResolver(), Settings.Global.BOOT_COUNT, UNKNOWN);
+    }
+
+    /**
+     * @param pm the package manager
+     * @return the current sequence number of package changes or {@link #UNKNOWN}
+     */
+    public static int getSequenceNumber(final PackageManager pm) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return UNKNOWN;
+        }
+
+        final ChangedPackages changedPackages = pm.getChangedPackages(0);
+        if (changedPackages == null) {
+            return 0;
+        }
+
+        return changedPackages.getSequenceNumber();
+    }
+
+    /**
+     * Get the packages that have changed since a sequence number. Read the new sequence
+     * number before calling this, so no change gets lost in between.
+     * @param pm the package manager
+     * @param sequenceNumber the sequence number
+     * @return the names of the changed packages or <code>null</code>, if they cannot be told
+     */
+    public static List<String> getChangedPackages(final PackageManager pm, final int sequenceNumber) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || sequenceNumber == UNKNOWN) {
+            return null;
+        }
+
+        final ChangedPackages changedPackages = pm.getChangedPackages(sequenceNumber);
+        if (changedPackages == null) {
+            return Collections.emptyList();
+        }
+
+        return changedPackages.getPackageNames();
+    }
+}